@@ -0,0 +1,199 @@
+package honoagent.services;
+
+import com.cumulocity.microservice.subscription.service.MicroserviceSubscriptionsService;
+import com.cumulocity.model.ID;
+import com.cumulocity.model.JSONBase;
+import com.cumulocity.model.idtype.GId;
+import com.cumulocity.rest.representation.identity.ExternalIDRepresentation;
+import com.cumulocity.rest.representation.inventory.ManagedObjectReferenceCollectionRepresentation;
+import com.cumulocity.rest.representation.inventory.ManagedObjectReferenceRepresentation;
+import com.cumulocity.rest.representation.inventory.ManagedObjectRepresentation;
+import com.cumulocity.sdk.client.SDKException;
+import com.cumulocity.sdk.client.event.EventApi;
+import com.cumulocity.sdk.client.identity.IdentityApi;
+import com.cumulocity.sdk.client.inventory.InventoryApi;
+import com.cumulocity.sdk.client.inventory.ManagedObject;
+import com.cumulocity.sdk.client.measurement.MeasurementApi;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory stand-ins for the Cumulocity SDK APIs used on the message handling path.
+ * <p>
+ * Only the methods called by the agent are implemented, every other method returns {@code null}. Each API counts its
+ * calls so benchmarks can report REST calls per message.
+ */
+class InMemoryCumulocity {
+
+    static final String TENANT = "bench";
+
+    final Map<String, ExternalIDRepresentation> externalIds = new ConcurrentHashMap<>();
+    final Map<GId, ManagedObjectRepresentation> managedObjects = new ConcurrentHashMap<>();
+    final Map<GId, List<ManagedObjectReferenceRepresentation>> parents = new ConcurrentHashMap<>();
+    final AtomicLong ids = new AtomicLong(1000);
+    final AtomicLong calls = new AtomicLong();
+
+    final IdentityApi identityApi = stub(IdentityApi.class, (name, args) -> {
+        switch (name) {
+            case "getExternalId":
+                ID id = (ID) args[0];
+                ExternalIDRepresentation extId = externalIds.get(id.getType() + "/" + id.getValue());
+                if (extId == null)
+                    throw new SDKException(404, "External ID not found");
+                return extId;
+            case "create":
+                ExternalIDRepresentation created = (ExternalIDRepresentation) args[0];
+                externalIds.put(created.getType() + "/" + created.getExternalId(), created);
+                return created;
+            default:
+                return null;
+        }
+    });
+
+    final InventoryApi inventoryApi = stub(InventoryApi.class, (name, args) -> {
+        switch (name) {
+            case "create":
+                ManagedObjectRepresentation mor = (ManagedObjectRepresentation) args[0];
+                mor.setId(new GId(String.valueOf(ids.incrementAndGet())));
+                managedObjects.put(mor.getId(), mor);
+                return mor;
+            case "update":
+                return args[0];
+            case "get":
+                ManagedObjectRepresentation stored = managedObjects.get((GId) args[0]);
+                ManagedObjectReferenceCollectionRepresentation deviceParents = new ManagedObjectReferenceCollectionRepresentation();
+                deviceParents.setReferences(parents.getOrDefault(args[0], Collections.<ManagedObjectReferenceRepresentation>emptyList()));
+                stored.setDeviceParents(deviceParents);
+                return stored;
+            case "getManagedObjectApi":
+                return managedObjectApi((GId) args[0]);
+            default:
+                return null;
+        }
+    });
+
+    final EventApi eventApi = stub(EventApi.class, (name, args) -> {
+        if (!"create".equals(name))
+            return null;
+        // Builds the request body like the SDK does before sending it
+        JSONBase.getJSONGenerator().forValue(args[0]);
+        return args[0];
+    });
+
+    final MeasurementApi measurementApi = stub(MeasurementApi.class, (name, args) -> {
+        if ("create".equals(name))
+            return args[0];
+        if ("createBulk".equals(name))
+            return args[0];
+        return null;
+    });
+
+    final MicroserviceSubscriptionsService subscriptionsService = stub(MicroserviceSubscriptionsService.class, (name, args) -> {
+        switch (name) {
+            case "getTenant":
+                return TENANT;
+            case "runForTenant":
+                ((Runnable) args[1]).run();
+                return null;
+            case "runForEachTenant":
+                ((Runnable) args[0]).run();
+                return null;
+            case "callForTenant":
+                return ((Callable<?>) args[1]).call();
+            default:
+                return null;
+        }
+    }, false);
+
+    private ManagedObject managedObjectApi(GId agentId) {
+        return stub(ManagedObject.class, (name, args) -> {
+            if ("addChildDevice".equals(name)) {
+                ManagedObjectReferenceRepresentation child = (ManagedObjectReferenceRepresentation) args[0];
+                ManagedObjectReferenceRepresentation parent = new ManagedObjectReferenceRepresentation();
+                parent.setManagedObject(managedObjects.get(agentId));
+                parents.computeIfAbsent(child.getManagedObject().getId(), id -> new ArrayList<>()).add(parent);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Creates a {@link CumulocityClient} wired to the in-memory APIs, together with the caches and the
+     * {@link BatchWriter} it depends on. The writer runs with the SDK client and without spool.
+     */
+    CumulocityClient newClient(AgentMetrics metrics) throws Exception {
+        DeviceIdentityCache deviceCache = new DeviceIdentityCache();
+        set(deviceCache, "metrics", metrics);
+        set(deviceCache, "maxSize", 1_000_000);
+        set(deviceCache, "ttlSeconds", 3600L);
+        set(deviceCache, "negativeTtlSeconds", 30L);
+        deviceCache.init();
+
+        LastSeenTracker lastSeenTracker = new LastSeenTracker();
+        set(lastSeenTracker, "inventoryApi", inventoryApi);
+        set(lastSeenTracker, "subscriptionsService", subscriptionsService);
+        set(lastSeenTracker, "metrics", metrics);
+
+        BatchWriter batchWriter = new BatchWriter();
+        batchWriter.eventApi = eventApi;
+        batchWriter.measurementApi = measurementApi;
+        batchWriter.subscriptionsService = subscriptionsService;
+        batchWriter.spoolService = new SpoolService();
+        batchWriter.metrics = metrics;
+        batchWriter.asyncClient = new AsyncPlatformClient();
+        set(batchWriter, "queueCapacity", 10000);
+        set(batchWriter, "workers", 1);
+        set(batchWriter, "batchSize", 100);
+        // Every operation waits for its write, a linger time would only add latency
+        set(batchWriter, "lingerMillis", 0L);
+        set(batchWriter, "tenantShare", 1.0);
+        batchWriter.start();
+
+        CumulocityClient client = new CumulocityClient();
+        client.eventApi = eventApi;
+        client.inventoryApi = inventoryApi;
+        client.identityApi = identityApi;
+        client.measurementApi = measurementApi;
+        client.subscriptionsService = subscriptionsService;
+        client.deviceCache = deviceCache;
+        client.lastSeenTracker = lastSeenTracker;
+        client.batchWriter = batchWriter;
+        client.metrics = metrics;
+        client.agentId = "hono_Agent";
+        client.agentName = "hono_Agent";
+        return client;
+    }
+
+    static void set(Object target, String field, Object value) throws ReflectiveOperationException {
+        Field f = target.getClass().getDeclaredField(field);
+        f.setAccessible(true);
+        f.set(target, value);
+    }
+
+    interface Handler {
+        Object invoke(String method, Object[] args) throws Exception;
+    }
+
+    private <T> T stub(Class<T> api, Handler handler) {
+        return stub(api, handler, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T stub(Class<T> api, Handler handler, boolean countCalls) {
+        return (T) Proxy.newProxyInstance(api.getClassLoader(), new Class<?>[]{api}, (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class)
+                return method.invoke(this, args);
+            if (countCalls)
+                calls.incrementAndGet();
+            return handler.invoke(method.getName(), args);
+        });
+    }
+}
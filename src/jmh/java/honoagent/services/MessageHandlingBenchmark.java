@@ -0,0 +1,123 @@
+package honoagent.services;
+
+import com.cumulocity.rest.representation.event.EventRepresentation;
+import com.cumulocity.rest.representation.inventory.ManagedObjectRepresentation;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.qpid.proton.amqp.Binary;
+import org.apache.qpid.proton.amqp.messaging.Data;
+import org.apache.qpid.proton.message.Message;
+import org.eclipse.hono.util.MessageHelper;
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-message cost of the telemetry and event handling path against in-memory Cumulocity APIs.
+ * <p>
+ * The benchmark runs the same steps as the handlers in {@link HonoAgent}: decode the payload, upsert the device,
+ * check the agent assignment and create the event. Events are written through the {@link BatchWriter} as in the
+ * agent, every operation waits for its write so that it covers the full path including the serialization of the
+ * request body. Run it with
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec
+ * </pre>
+ * The profile adds {@code -prof gc} so the allocation rate per operation is reported next to throughput and the
+ * latency percentiles of the sample time mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageHandlingBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    int payloadSize;
+
+    @Param({"1", "1000", "100000"})
+    int deviceCount;
+
+    private InMemoryCumulocity cumulocity;
+    private CumulocityClient client;
+    private Message[] messages;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        cumulocity = new InMemoryCumulocity();
+        AgentMetrics metrics = new AgentMetrics();
+        metrics.registry = new SimpleMeterRegistry();
+        metrics.init();
+        client = cumulocity.newClient(metrics);
+        client.findAgentMor();
+
+        // One message per device, devices are visited round robin
+        messages = new Message[deviceCount];
+        for (int i = 0; i < deviceCount; i++) {
+            messages[i] = newMessage("device-" + i, payload(i, payloadSize));
+        }
+        cumulocity.calls.set(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.batchWriter.shutdown();
+        System.out.printf("%nREST calls per message: %.3f%n", (double) cumulocity.calls.get() / Math.max(1, next));
+    }
+
+    @Benchmark
+    public EventRepresentation handleTelemetryMessage() {
+        return handle(nextMessage(), "hono_Telemetry", "Hono Telemetry Message");
+    }
+
+    @Benchmark
+    public EventRepresentation handleEventMessage() {
+        return handle(nextMessage(), "hono_Event", "Hono Event Message");
+    }
+
+    private EventRepresentation handle(Message msg, String type, String text) {
+        final DecodedMessage message = DecodedMessage.of(msg);
+        final String deviceId = message.getDeviceId();
+        ManagedObjectRepresentation mor = client.upsertHonoDevice(deviceId, deviceId, DateTime.now());
+        client.checkAgentAssignment(mor);
+        if (message.isJsonObject())
+            return client.createRawEventAsync(mor, type, text, message.getPayloadAsString(), DateTime.now()).join();
+        return client.createEventAsync(mor, type, text, message.getPayloadAsString(), null, DateTime.now()).join();
+    }
+
+    private Message nextMessage() {
+        return messages[next++ % messages.length];
+    }
+
+    private static Message newMessage(String deviceId, String payload) {
+        Message msg = Message.Factory.create();
+        MessageHelper.addDeviceId(msg, deviceId);
+        msg.setContentType("application/json");
+        msg.setBody(new Data(new Binary(payload.getBytes(StandardCharsets.UTF_8))));
+        return msg;
+    }
+
+    private static String payload(int seq, int size) {
+        StringBuilder payload = new StringBuilder(size + 32);
+        payload.append("{\"temp\":").append(20 + seq % 10).append(".5,\"seq\":").append(seq).append(",\"pad\":\"");
+        while (payload.length() < size - 2) {
+            payload.append('x');
+        }
+        return payload.append("\"}").toString();
+    }
+}
@@ -0,0 +1,374 @@
+package honoagent.services;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * HTTP server that answers the Cumulocity REST calls made by the agent from memory.
+ * <p>
+ * Every request is counted by its route. Events carry the send time of the Hono message in their
+ * {@code hono_Content} fragment, which is used to record the end-to-end latency of each message. Command
+ * latency is measured from {@link #operationDispatched(String)} to the final status update of the operation.
+ * All requests are handled on the event loop of the server, the stores are only shared with the setup code.
+ */
+class FakeCumulocityServer {
+
+    final Logger logger = LoggerFactory.getLogger(FakeCumulocityServer.class);
+
+    private final Vertx vertx;
+    private final Map<String, String> honoOptions;
+    private HttpServer server;
+    private String url;
+
+    private final AtomicLong ids = new AtomicLong(10000);
+    private final Map<String, JsonObject> externalIds = new ConcurrentHashMap<>();
+    private final Map<String, JsonObject> managedObjects = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> children = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> parents = new ConcurrentHashMap<>();
+    private final Map<String, Long> dispatchedOperations = new ConcurrentHashMap<>();
+
+    private final Map<String, LongAdder> calls = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> unhandled = new ConcurrentHashMap<>();
+    final LongAdder events = new LongAdder();
+    final LongAdder measurements = new LongAdder();
+    final LongAdder commandsSucceeded = new LongAdder();
+    final LongAdder commandsFailed = new LongAdder();
+    final Timer messageLatency;
+    final Timer commandLatency;
+
+    FakeCumulocityServer(Vertx vertx, MeterRegistry registry, Map<String, String> honoOptions) {
+        this.vertx = vertx;
+        this.honoOptions = honoOptions;
+        this.messageLatency = latencyTimer(registry, "loadtest.message.latency");
+        this.commandLatency = latencyTimer(registry, "loadtest.command.latency");
+    }
+
+    private static Timer latencyTimer(MeterRegistry registry, String name) {
+        // Keep the whole run in one histogram instead of the default rotating window
+        return Timer.builder(name)
+                .publishPercentiles(0.5, 0.95, 0.99, 0.999)
+                .distributionStatisticExpiry(Duration.ofDays(1))
+                .distributionStatisticBufferLength(1)
+                .register(registry);
+    }
+
+    CompletableFuture<String> start() {
+        CompletableFuture<String> started = new CompletableFuture<>();
+        server = vertx.createHttpServer()
+                .requestHandler(request -> request.bodyHandler(body -> handle(request, body)))
+                .listen(0, "127.0.0.1", result -> {
+                    if (result.succeeded()) {
+                        url = "http://127.0.0.1:" + result.result().actualPort();
+                        logger.info("Fake Cumulocity listening on {}", url);
+                        started.complete(url);
+                    } else {
+                        started.completeExceptionally(result.cause());
+                    }
+                });
+        return started;
+    }
+
+    void stop() {
+        server.close();
+    }
+
+    /**
+     * Creates the device and its external id up front, so a run measures the steady state instead of the first
+     * contact of every device.
+     */
+    void registerDevice(String deviceId) {
+        JsonObject mo = new JsonObject().put("name", deviceId).put("type", "c8y_HonoDevice").put("c8y_IsDevice", new JsonObject())
+                .put("hono_DeviceId", deviceId);
+        String id = createManagedObject(mo);
+        externalIds.put("c8y_Serial/" + deviceId, externalId("c8y_Serial", deviceId, id));
+    }
+
+    void operationDispatched(String operationId) {
+        dispatchedOperations.put(operationId, System.nanoTime());
+    }
+
+    long getWrittenCount() {
+        return events.sum() + measurements.sum();
+    }
+
+    long getCallCount() {
+        long total = 0;
+        for (LongAdder count : calls.values()) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    Map<String, Long> getCallsByRoute() {
+        return sums(calls);
+    }
+
+    /**
+     * Requests the fake does not implement, e.g. the long polling of the notification API. They are not part of
+     * {@link #getCallCount()}.
+     */
+    Map<String, Long> getUnhandledCalls() {
+        return sums(unhandled);
+    }
+
+    void resetCallCounts() {
+        calls.clear();
+        unhandled.clear();
+    }
+
+    private static Map<String, Long> sums(Map<String, LongAdder> counts) {
+        Map<String, Long> byRoute = new TreeMap<>();
+        counts.forEach((route, count) -> byRoute.put(route, count.sum()));
+        return byRoute;
+    }
+
+    private void handle(HttpServerRequest request, Buffer body) {
+        String[] path = request.path().replaceAll("/+", "/").replaceAll("^/|/$", "").split("/");
+        String method = request.method().name();
+        try {
+            if (path.length == 1) {
+                reply(request, method + " /" + path[0], 200, root(path[0]));
+                return;
+            }
+            switch (path[0] + "/" + path[1]) {
+                case "identity/externalIds":
+                    JsonObject extId = externalIds.get(path[2] + "/" + path[3]);
+                    if (extId == null)
+                        notFound(request, "GET /identity/externalIds");
+                    else
+                        reply(request, "GET /identity/externalIds", 200, extId);
+                    return;
+                case "identity/globalIds": {
+                    if ("GET".equals(method)) {
+                        JsonArray ofGlobalId = new JsonArray();
+                        externalIds.values().stream()
+                                .filter(extId -> path[2].equals(extId.getJsonObject("managedObject").getString("id")))
+                                .forEach(ofGlobalId::add);
+                        reply(request, "GET /identity/globalIds/{id}/externalIds", 200, page("externalIds", ofGlobalId, request));
+                        return;
+                    }
+                    JsonObject created = body.toJsonObject();
+                    JsonObject stored = externalId(created.getString("type"), created.getString("externalId"), path[2]);
+                    externalIds.put(created.getString("type") + "/" + created.getString("externalId"), stored);
+                    reply(request, "POST /identity/globalIds/{id}/externalIds", 201, stored);
+                    return;
+                }
+                case "inventory/managedObjects":
+                    handleInventory(request, method, path, body);
+                    return;
+                case "event/events": {
+                    JsonObject event = body.toJsonObject();
+                    events.increment();
+                    recordLatency(event);
+                    reply(request, "POST /event/events", 201, event.put("id", nextId()));
+                    return;
+                }
+                case "measurement/measurements": {
+                    JsonObject measurement = body.toJsonObject();
+                    JsonArray bulk = measurement.getJsonArray("measurements");
+                    measurements.add(bulk != null ? bulk.size() : 1);
+                    reply(request, bulk != null ? "POST /measurement/measurements (bulk)" : "POST /measurement/measurements", 201, measurement);
+                    return;
+                }
+                case "devicecontrol/operations":
+                    if ("PUT".equals(method)) {
+                        JsonObject operation = body.toJsonObject();
+                        recordCommand(path[2], operation.getString("status"));
+                        reply(request, "PUT /devicecontrol/operations/{id}", 200, operation.put("id", path[2]));
+                    } else {
+                        reply(request, "GET /devicecontrol/operations", 200, page("operations", new JsonArray(), request));
+                    }
+                    return;
+                case "tenant/options": {
+                    JsonObject options = new JsonObject();
+                    if ("hono".equals(path[2]))
+                        honoOptions.forEach(options::put);
+                    reply(request, "GET /tenant/options/{category}", 200, options);
+                    return;
+                }
+                default:
+                    unhandled.computeIfAbsent(method + " /" + path[0] + "/" + path[1], r -> new LongAdder()).increment();
+                    request.response().setStatusCode(404).end();
+            }
+        } catch (Exception e) {
+            logger.error("Error handling {} {}", method, request.path(), e);
+            reply(request, method + " (error)", 500, new JsonObject().put("error", "loadtest/Internal Error").put("message", String.valueOf(e.getMessage())));
+        }
+    }
+
+    private void handleInventory(HttpServerRequest request, String method, String[] path, Buffer body) {
+        if (path.length == 2 && "GET".equals(method)) {
+            String type = request.getParam("type");
+            List<JsonObject> ofType = managedObjects.values().stream()
+                    .filter(mo -> type == null || type.equals(mo.getString("type")))
+                    .sorted(Comparator.comparing((JsonObject mo) -> Long.valueOf(mo.getString("id"))))
+                    .collect(Collectors.toList());
+            reply(request, "GET /inventory/managedObjects", 200, slice("managedObjects", ofType, request));
+            return;
+        }
+        if (path.length == 2) {
+            JsonObject mo = body.toJsonObject();
+            createManagedObject(mo);
+            reply(request, "POST /inventory/managedObjects", 201, mo);
+            return;
+        }
+        String id = path[2];
+        JsonObject mo = managedObjects.get(id);
+        if (mo == null) {
+            notFound(request, method + " /inventory/managedObjects/{id}");
+            return;
+        }
+        if (path.length == 4 && "childDevices".equals(path[3])) {
+            if ("POST".equals(method)) {
+                JsonObject reference = body.toJsonObject();
+                String childId = reference.getJsonObject("managedObject").getString("id");
+                children.computeIfAbsent(id, k -> ConcurrentHashMap.newKeySet()).add(childId);
+                parents.computeIfAbsent(childId, k -> ConcurrentHashMap.newKeySet()).add(id);
+                reply(request, "POST /inventory/managedObjects/{id}/childDevices", 201, reference);
+            } else {
+                reply(request, "GET /inventory/managedObjects/{id}/childDevices", 200, page("references", references(children.get(id)), request));
+            }
+            return;
+        }
+        if ("PUT".equals(method)) {
+            mo.mergeIn(body.toJsonObject());
+            reply(request, "PUT /inventory/managedObjects/{id}", 200, mo);
+            return;
+        }
+        JsonObject withParents = mo.copy().put("deviceParents", new JsonObject()
+                .put("self", url + "/inventory/managedObjects/" + id + "/deviceParents")
+                .put("references", references(parents.get(id))));
+        reply(request, "GET /inventory/managedObjects/{id}", 200, withParents);
+    }
+
+    private String createManagedObject(JsonObject mo) {
+        String id = nextId();
+        mo.put("id", id).put("self", url + "/inventory/managedObjects/" + id);
+        managedObjects.put(id, mo);
+        return id;
+    }
+
+    private void recordLatency(JsonObject event) {
+        Object content = event.getValue("hono_Content");
+        if (content instanceof JsonObject && ((JsonObject) content).getValue("sentAt") instanceof Number) {
+            long sentAt = ((JsonObject) content).getLong("sentAt");
+            messageLatency.record(System.nanoTime() - sentAt, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void recordCommand(String operationId, String status) {
+        if (!"SUCCESSFUL".equals(status) && !"FAILED".equals(status))
+            return;
+        Long dispatched = dispatchedOperations.remove(operationId);
+        if (dispatched != null)
+            commandLatency.record(System.nanoTime() - dispatched, TimeUnit.NANOSECONDS);
+        if ("SUCCESSFUL".equals(status))
+            commandsSucceeded.increment();
+        else
+            commandsFailed.increment();
+    }
+
+    private JsonObject externalId(String type, String externalId, String managedObjectId) {
+        return new JsonObject()
+                .put("self", url + "/identity/externalIds/" + type + "/" + externalId)
+                .put("type", type)
+                .put("externalId", externalId)
+                .put("managedObject", new JsonObject()
+                        .put("id", managedObjectId)
+                        .put("self", url + "/inventory/managedObjects/" + managedObjectId));
+    }
+
+    private JsonArray references(Set<String> ids) {
+        JsonArray references = new JsonArray();
+        if (ids != null) {
+            for (String id : ids) {
+                JsonObject mo = managedObjects.get(id);
+                references.add(new JsonObject().put("managedObject", new JsonObject()
+                        .put("id", id)
+                        .put("name", mo != null ? mo.getString("name") : null)
+                        .put("self", url + "/inventory/managedObjects/" + id)));
+            }
+        }
+        return references;
+    }
+
+    private JsonObject page(String name, JsonArray items, HttpServerRequest request) {
+        // Everything fits on the first page, later pages are empty so paging iterators terminate
+        int currentPage = request.getParam("currentPage") != null ? Integer.parseInt(request.getParam("currentPage")) : 1;
+        return new JsonObject()
+                .put("self", url + request.uri())
+                .put(name, currentPage == 1 ? items : new JsonArray())
+                .put("statistics", new JsonObject().put("currentPage", currentPage).put("pageSize", Math.max(items.size(), 5)));
+    }
+
+    private JsonObject slice(String name, List<JsonObject> items, HttpServerRequest request) {
+        int currentPage = request.getParam("currentPage") != null ? Integer.parseInt(request.getParam("currentPage")) : 1;
+        int pageSize = request.getParam("pageSize") != null ? Integer.parseInt(request.getParam("pageSize")) : 5;
+        int from = Math.min(items.size(), (currentPage - 1) * pageSize);
+        return new JsonObject()
+                .put("self", url + request.uri())
+                .put(name, new JsonArray(new ArrayList<>(items.subList(from, Math.min(items.size(), from + pageSize)))))
+                .put("statistics", new JsonObject().put("currentPage", currentPage).put("pageSize", pageSize));
+    }
+
+    private JsonObject root(String api) {
+        JsonObject root = new JsonObject().put("self", url + "/" + api);
+        switch (api) {
+            case "inventory":
+                return root.put("managedObjects", new JsonObject().put("self", url + "/inventory/managedObjects"))
+                        .put("managedObjectsForType", url + "/inventory/managedObjects?type={type}")
+                        .put("managedObjectsForFragmentType", url + "/inventory/managedObjects?fragmentType={fragmentType}")
+                        .put("managedObjectsForListOfIds", url + "/inventory/managedObjects?ids={ids}");
+            case "identity":
+                return root.put("externalId", url + "/identity/externalIds/{type}/{externalId}")
+                        .put("externalIdsOfGlobalId", url + "/identity/globalIds/{globalId}/externalIds")
+                        .put("globalId", url + "/identity/globalIds/{globalId}");
+            case "event":
+                return root.put("events", new JsonObject().put("self", url + "/event/events"));
+            case "measurement":
+                return root.put("measurements", new JsonObject().put("self", url + "/measurement/measurements"));
+            case "devicecontrol":
+                return root.put("operations", new JsonObject().put("self", url + "/devicecontrol/operations"));
+            default:
+                return root;
+        }
+    }
+
+    private void notFound(HttpServerRequest request, String route) {
+        reply(request, route, 404, new JsonObject().put("error", "loadtest/Not Found").put("message", "Not found: " + request.path()));
+    }
+
+    private void reply(HttpServerRequest request, String route, int status, JsonObject body) {
+        calls.computeIfAbsent(route, r -> new LongAdder()).increment();
+        request.response()
+                .setStatusCode(status)
+                .putHeader("Content-Type", "application/json")
+                .end(body.encode());
+    }
+
+    private String nextId() {
+        return String.valueOf(ids.incrementAndGet());
+    }
+}
@@ -0,0 +1,256 @@
+package honoagent.services;
+
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.net.NetSocket;
+import io.vertx.proton.ProtonConnection;
+import io.vertx.proton.ProtonHelper;
+import io.vertx.proton.ProtonReceiver;
+import io.vertx.proton.ProtonSender;
+import io.vertx.proton.ProtonServer;
+import io.vertx.proton.ProtonSession;
+import io.vertx.proton.sasl.ProtonSaslAuthenticator;
+import org.apache.qpid.proton.amqp.Binary;
+import org.apache.qpid.proton.amqp.messaging.Data;
+import org.apache.qpid.proton.engine.Sasl;
+import org.apache.qpid.proton.engine.Transport;
+import org.apache.qpid.proton.message.Message;
+import org.eclipse.hono.util.MessageHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AMQP 1.0 endpoint that behaves like the northbound API of Hono for a single tenant.
+ * <p>
+ * The agent opens its telemetry and event consumers and its command client against this server. Once load is
+ * started, messages are generated at the offered rate for a population of devices and sent as far as the credit
+ * granted by the agent allows. Commands are answered immediately by a simulated device.
+ */
+class FakeHonoServer {
+
+    final Logger logger = LoggerFactory.getLogger(FakeHonoServer.class);
+
+    private static final long TICK_MILLIS = 10;
+
+    private final Vertx vertx;
+    private final String tenant;
+    private ProtonServer server;
+
+    private volatile Context context;
+    private volatile ProtonSender telemetrySender;
+    private volatile ProtonSender eventSender;
+    private final Map<String, ProtonSender> responseSenders = new ConcurrentHashMap<>();
+    private final CompletableFuture<Void> consumersReady = new CompletableFuture<>();
+    private final CompletableFuture<Void> commandsReady = new CompletableFuture<>();
+
+    final AtomicLong telemetrySent = new AtomicLong();
+    final AtomicLong eventsSent = new AtomicLong();
+    final AtomicLong creditStalls = new AtomicLong();
+    final AtomicLong commandsReceived = new AtomicLong();
+
+    private long loadTimerId = -1;
+
+    FakeHonoServer(Vertx vertx, String tenant) {
+        this.vertx = vertx;
+        this.tenant = tenant;
+    }
+
+    CompletableFuture<Integer> start() {
+        CompletableFuture<Integer> started = new CompletableFuture<>();
+        server = ProtonServer.create(vertx)
+                .saslAuthenticatorFactory(PlainAuthenticator::new)
+                .connectHandler(this::onConnect)
+                .listen(0, "127.0.0.1", result -> {
+                    if (result.succeeded()) {
+                        logger.info("Fake Hono listening on port {}", result.result().actualPort());
+                        started.complete(result.result().actualPort());
+                    } else {
+                        started.completeExceptionally(result.cause());
+                    }
+                });
+        return started;
+    }
+
+    void stop() {
+        if (context != null)
+            context.runOnContext(v -> vertx.cancelTimer(loadTimerId));
+        server.close();
+    }
+
+    /**
+     * Completes once the agent has attached both its telemetry and its event consumer.
+     */
+    CompletableFuture<Void> consumersReady() {
+        return consumersReady;
+    }
+
+    /**
+     * Completes once the agent has opened the links of its command client.
+     */
+    CompletableFuture<Void> commandsReady() {
+        return commandsReady;
+    }
+
+    long getSentCount() {
+        return telemetrySent.get() + eventsSent.get();
+    }
+
+    /**
+     * Starts sending messages at the given rate until {@link #stopLoad()} is called.
+     *
+     * @param ratePerSecond offered messages per second over all devices
+     * @param devices       number of distinct devices, messages are sent round robin
+     * @param payloadSize   approximate size of each JSON payload in bytes
+     * @param eventRatio    fraction of the messages sent as events instead of telemetry
+     */
+    void startLoad(int ratePerSecond, int devices, int payloadSize, double eventRatio) {
+        String padding = padding(payloadSize);
+        context.runOnContext(v -> {
+            final long started = System.nanoTime();
+            final long[] offered = new long[1];
+            loadTimerId = vertx.setPeriodic(TICK_MILLIS, timerId -> {
+                long due = (System.nanoTime() - started) * ratePerSecond / 1_000_000_000L;
+                while (offered[0] < due) {
+                    long seq = offered[0];
+                    boolean event = eventRatio > 0 && (seq % Math.max(1, Math.round(1 / eventRatio))) == 0;
+                    ProtonSender sender = event ? eventSender : telemetrySender;
+                    if (sender == null || sender.sendQueueFull()) {
+                        // The agent did not grant credit, the rest of this tick's messages are offered again later
+                        creditStalls.incrementAndGet();
+                        break;
+                    }
+                    String deviceId = "device-" + (seq % devices);
+                    sender.send(newMessage(event ? "event/" : "telemetry/", deviceId, seq, padding));
+                    (event ? eventsSent : telemetrySent).incrementAndGet();
+                    offered[0]++;
+                }
+            });
+        });
+    }
+
+    void stopLoad() {
+        context.runOnContext(v -> vertx.cancelTimer(loadTimerId));
+    }
+
+    private void onConnect(ProtonConnection connection) {
+        context = Vertx.currentContext();
+        connection.openHandler(result -> {
+            connection.setContainer("fake-hono");
+            connection.open();
+        });
+        connection.closeHandler(result -> connection.close());
+        connection.disconnectHandler(ProtonConnection::disconnect);
+        connection.sessionOpenHandler(ProtonSession::open);
+        connection.senderOpenHandler(this::onSenderOpen);
+        connection.receiverOpenHandler(this::onReceiverOpen);
+    }
+
+    private void onSenderOpen(ProtonSender sender) {
+        String address = sender.getRemoteSource().getAddress();
+        sender.setSource(sender.getRemoteSource());
+        sender.setQoS(sender.getRemoteQoS());
+        sender.closeHandler(result -> sender.close());
+        sender.open();
+        logger.info("Agent attached receiver link {}", address);
+        if (address.startsWith("telemetry/")) {
+            telemetrySender = sender;
+        } else if (address.startsWith("event/")) {
+            eventSender = sender;
+        } else if (address.startsWith("command_response/")) {
+            responseSenders.put(address, sender);
+            commandsReady.complete(null);
+        }
+        if (telemetrySender != null && eventSender != null)
+            consumersReady.complete(null);
+    }
+
+    private void onReceiverOpen(ProtonReceiver receiver) {
+        logger.info("Agent attached sender link {}", receiver.getRemoteTarget().getAddress());
+        receiver.setTarget(receiver.getRemoteTarget());
+        receiver.setQoS(receiver.getRemoteQoS());
+        receiver.handler((delivery, msg) -> onCommand(msg));
+        receiver.closeHandler(result -> receiver.close());
+        receiver.open();
+    }
+
+    private void onCommand(Message command) {
+        commandsReceived.incrementAndGet();
+        String replyTo = command.getReplyTo();
+        if (replyTo == null)
+            return;
+        ProtonSender sender = responseSenders.get(replyTo);
+        if (sender == null) {
+            logger.warn("No response link for {}", replyTo);
+            return;
+        }
+        Message response = ProtonHelper.message();
+        response.setAddress(replyTo);
+        response.setCorrelationId(command.getMessageId());
+        response.setContentType("application/json");
+        response.setBody(new Data(new Binary("{\"result\":\"ok\"}".getBytes(StandardCharsets.UTF_8))));
+        MessageHelper.addProperty(response, MessageHelper.APP_PROPERTY_STATUS, 200);
+        sender.send(response);
+    }
+
+    private Message newMessage(String endpoint, String deviceId, long seq, String padding) {
+        Message msg = ProtonHelper.message();
+        msg.setAddress(endpoint + tenant);
+        MessageHelper.addDeviceId(msg, deviceId);
+        msg.setContentType("application/json");
+        // The send time lets the fake Cumulocity compute the end-to-end latency when the event arrives
+        String payload = "{\"sentAt\":" + System.nanoTime() + ",\"seq\":" + seq + ",\"temperature\":" + (20 + seq % 10) + ",\"pad\":\"" + padding + "\"}";
+        msg.setBody(new Data(new Binary(payload.getBytes(StandardCharsets.UTF_8))));
+        return msg;
+    }
+
+    private static String padding(int payloadSize) {
+        StringBuilder padding = new StringBuilder();
+        // Roughly the size of the other fields of the payload
+        for (int i = 80; i < payloadSize; i++) {
+            padding.append('x');
+        }
+        return padding.toString();
+    }
+
+    /**
+     * Accepts any SASL PLAIN credentials, the agent always authenticates with user name and password.
+     */
+    private static class PlainAuthenticator implements ProtonSaslAuthenticator {
+
+        private Sasl sasl;
+        private boolean succeeded;
+
+        @Override
+        public void init(NetSocket socket, ProtonConnection protonConnection, Transport transport) {
+            sasl = transport.sasl();
+            sasl.server();
+            sasl.allowSkip(false);
+            sasl.setMechanisms("PLAIN");
+        }
+
+        @Override
+        public void process(Handler<Boolean> completionHandler) {
+            if (sasl.getRemoteMechanisms().length == 0) {
+                completionHandler.handle(false);
+                return;
+            }
+            byte[] response = new byte[sasl.pending()];
+            sasl.recv(response, 0, response.length);
+            sasl.done(Sasl.SaslOutcome.PN_SASL_OK);
+            succeeded = true;
+            completionHandler.handle(true);
+        }
+
+        @Override
+        public boolean succeeded() {
+            return succeeded;
+        }
+    }
+}
@@ -0,0 +1,454 @@
+package honoagent.services;
+
+import com.cumulocity.microservice.subscription.model.MicroserviceSubscriptionAddedEvent;
+import com.cumulocity.microservice.subscription.model.core.MicroserviceCredentials;
+import com.cumulocity.microservice.subscription.service.MicroserviceSubscriptionsService;
+import com.cumulocity.model.authentication.CumulocityCredentials;
+import com.cumulocity.model.idtype.GId;
+import com.cumulocity.rest.representation.operation.OperationRepresentation;
+import com.cumulocity.sdk.client.Platform;
+import com.cumulocity.sdk.client.PlatformImpl;
+import honoagent.config.HonoConfiguration;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.vertx.core.Vertx;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.text.DecimalFormat;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end load test of the agent against a local Hono and Cumulocity stand-in.
+ * <p>
+ * The agent components are wired by hand instead of by Spring and the tenant subscription is added through the
+ * same event handler as in production, so the real connection, consumer, credit and write code is exercised.
+ * The test is configured with system properties:
+ * <ul>
+ * <li>{@code load.devices} - number of simulated devices (1000)</li>
+ * <li>{@code load.rate} - offered messages per second (1000)</li>
+ * <li>{@code load.durationSeconds} - duration of the load phase (60)</li>
+ * <li>{@code load.payloadSize} - size of the JSON payloads in bytes (256)</li>
+ * <li>{@code load.eventRatio} - fraction of messages sent as events instead of telemetry (0.1)</li>
+ * <li>{@code load.commandRate} - operations per second sent as request/response commands (5)</li>
+ * <li>{@code load.knownDevices} - create all devices in the fake inventory before the run (false)</li>
+ * </ul>
+ * Agent settings like {@code hono.writer.workers} can be passed as system properties as well.
+ */
+public class LoadTest {
+
+    private static final String TENANT = "loadtest";
+    private static final String HONO_TENANT = "DEFAULT_TENANT";
+
+    private final int devices = Integer.getInteger("load.devices", 1000);
+    private final int rate = Integer.getInteger("load.rate", 1000);
+    private final int durationSeconds = Integer.getInteger("load.durationSeconds", 60);
+    private final int payloadSize = Integer.getInteger("load.payloadSize", 256);
+    private final double eventRatio = Double.parseDouble(System.getProperty("load.eventRatio", "0.1"));
+    private final double commandRate = Double.parseDouble(System.getProperty("load.commandRate", "5"));
+    private final boolean knownDevices = Boolean.getBoolean("load.knownDevices");
+
+    private final Vertx vertx = Vertx.vertx();
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+    private final ExecutorService operationExecutor = Executors.newFixedThreadPool(4);
+
+    private FakeHonoServer hono;
+    private FakeCumulocityServer cumulocity;
+    private HonoAgent agent;
+    private CumulocityClient cumulocityClient;
+    private LastSeenTracker lastSeenTracker;
+    private BatchWriter batchWriter;
+    private SpoolService spoolService;
+    private DeviceExecutor deviceExecutor;
+    private TelemetryLane telemetryLane;
+    private MicroserviceSubscriptionsService subscriptionsService;
+
+    public static void main(String[] args) throws Exception {
+        int exitCode = 0;
+        try {
+            new LoadTest().run();
+        } catch (Exception e) {
+            e.printStackTrace();
+            exitCode = 1;
+        }
+        // The agent keeps its own Vert.x instance running
+        System.exit(exitCode);
+    }
+
+    private void run() throws Exception {
+        hono = new FakeHonoServer(vertx, HONO_TENANT);
+        int honoPort = hono.start().get(10, TimeUnit.SECONDS);
+
+        Map<String, String> honoOptions = new LinkedHashMap<>();
+        honoOptions.put("host", "127.0.0.1");
+        honoOptions.put("port", String.valueOf(honoPort));
+        honoOptions.put("username", "loadtest@" + HONO_TENANT);
+        honoOptions.put("credentials.password", "loadtest");
+        honoOptions.put("tenantid", HONO_TENANT);
+        cumulocity = new FakeCumulocityServer(vertx, registry, honoOptions);
+        String url = cumulocity.start().get(10, TimeUnit.SECONDS);
+        if (knownDevices) {
+            for (int i = 0; i < devices; i++) {
+                cumulocity.registerDevice("device-" + i);
+            }
+        }
+
+        wireAgent(url, honoOptions);
+        Method onAdded = HonoAgent.class.getDeclaredMethod("onAdded", MicroserviceSubscriptionAddedEvent.class);
+        onAdded.setAccessible(true);
+        onAdded.invoke(agent, new MicroserviceSubscriptionAddedEvent(MicroserviceCredentials.builder()
+                .tenant(TENANT).username("loadtest").password("loadtest").build()));
+        agent.whenReady(TENANT).get(120, TimeUnit.SECONDS);
+        hono.consumersReady().get(60, TimeUnit.SECONDS);
+        if (commandRate > 0)
+            hono.commandsReady().get(60, TimeUnit.SECONDS);
+        cumulocity.resetCallCounts();
+
+        System.out.printf("Offering %d msg/s from %d devices for %d s...%n", rate, devices, durationSeconds);
+        long flushInterval = Long.getLong("hono.lastSeen.flushIntervalMillis", 30000);
+        scheduler.scheduleWithFixedDelay(lastSeenTracker::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        AtomicLong operations = new AtomicLong();
+        if (commandRate > 0) {
+            scheduler.scheduleAtFixedRate(() -> dispatchOperation(operations.incrementAndGet()), 0, (long) (1_000_000 / commandRate), TimeUnit.MICROSECONDS);
+        }
+        long started = System.nanoTime();
+        hono.startLoad(rate, devices, payloadSize, eventRatio);
+        TimeUnit.SECONDS.sleep(durationSeconds);
+        hono.stopLoad();
+        scheduler.shutdownNow();
+
+        // Give the pipeline time to write what it has accepted
+        long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (cumulocity.getWrittenCount() < hono.getSentCount() && System.nanoTime() < drainDeadline) {
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+        long elapsed = System.nanoTime() - started;
+        report(elapsed, operations.get());
+
+        hono.stop();
+        cumulocity.stop();
+        batchWriter.shutdown();
+        spoolService.shutdown();
+        deviceExecutor.shutdown();
+        telemetryLane.shutdown();
+    }
+
+    private void dispatchOperation(long sequence) {
+        OperationRepresentation op = new OperationRepresentation();
+        String deviceName = "device-" + (sequence % devices);
+        op.setId(new GId("op-" + sequence));
+        op.setDeviceId(new GId(deviceName));
+        op.setDeviceName(deviceName);
+        op.set("setValue", "hono_Command");
+        op.set(false, "hono_OneWay");
+        op.set("{\"value\":" + sequence + "}", "hono_Data");
+        cumulocity.operationDispatched(op.getId().getValue());
+        operationExecutor.execute(() -> subscriptionsService.runForTenant(TENANT, () -> cumulocityClient.processOperations(op)));
+    }
+
+    private void report(long elapsedNanos, long operations) {
+        double seconds = elapsedNanos / 1e9;
+        long sent = hono.getSentCount();
+        long written = cumulocity.getWrittenCount();
+        long calls = cumulocity.getCallCount();
+        System.out.println();
+        System.out.printf("Load test finished after %.1f s%n", seconds);
+        System.out.printf("  devices              %d%n", devices);
+        System.out.printf("  offered              %d msg/s, payload %d bytes%n", rate, payloadSize);
+        System.out.printf("  sent                 %d (telemetry %d, events %d), %d credit stalls%n",
+                sent, hono.telemetrySent.get(), hono.eventsSent.get(), hono.creditStalls.get());
+        System.out.printf("  written              %d (events %d, measurements %d)%n", written, cumulocity.events.sum(), cumulocity.measurements.sum());
+        System.out.printf("  throughput           %.1f msg/s%n", written / seconds);
+        System.out.printf("  latency              %s%n", percentiles(cumulocity.messageLatency));
+        System.out.printf("  REST calls           %d, %.3f per message%n", calls, sent > 0 ? (double) calls / sent : 0);
+        cumulocity.getCallsByRoute().forEach((route, count) -> System.out.printf("    %-52s %d%n", route, count));
+        cumulocity.getUnhandledCalls().forEach((route, count) -> System.out.printf("    %-52s %d (not implemented, not counted)%n", route, count));
+        if (operations > 0) {
+            System.out.printf("  commands             %d dispatched, %d received by devices, %d successful, %d failed%n",
+                    operations, hono.commandsReceived.get(), cumulocity.commandsSucceeded.sum(), cumulocity.commandsFailed.sum());
+            System.out.printf("  command latency      %s%n", percentiles(cumulocity.commandLatency));
+        }
+    }
+
+    private static String percentiles(Timer timer) {
+        StringBuilder line = new StringBuilder();
+        for (ValueAtPercentile percentile : timer.takeSnapshot().percentileValues()) {
+            line.append(String.format("p%s=%.1fms ", new DecimalFormat("0.#").format(percentile.percentile() * 100), percentile.value(TimeUnit.MILLISECONDS)));
+        }
+        return line.append(String.format("max=%.1fms", timer.max(TimeUnit.MILLISECONDS))).toString();
+    }
+
+    /**
+     * Creates the agent components the way Spring would, with the SDK APIs pointing to the fake Cumulocity.
+     */
+    private void wireAgent(String url, Map<String, String> honoOptions) throws Exception {
+        Platform platform = new PlatformImpl(url, new CumulocityCredentials(TENANT, "loadtest", "loadtest", null));
+        subscriptionsService = subscriptionsService();
+
+        AgentMetrics metrics = new AgentMetrics();
+        metrics.registry = registry;
+        metrics.init();
+
+        DeviceIdentityCache deviceCache = new DeviceIdentityCache();
+        deviceCache.metrics = metrics;
+        set(deviceCache, "maxSize", Integer.getInteger("hono.cache.maxSize", 100000));
+        set(deviceCache, "ttlSeconds", Long.getLong("hono.cache.ttlSeconds", 3600));
+        set(deviceCache, "negativeTtlSeconds", Long.getLong("hono.cache.negativeTtlSeconds", 30));
+        deviceCache.init();
+
+        lastSeenTracker = new LastSeenTracker();
+        lastSeenTracker.inventoryApi = platform.getInventoryApi();
+        lastSeenTracker.subscriptionsService = subscriptionsService;
+        lastSeenTracker.metrics = metrics;
+
+        spoolService = new SpoolService();
+        spoolService.eventApi = platform.getEventApi();
+        spoolService.measurementApi = platform.getMeasurementApi();
+        spoolService.subscriptionsService = subscriptionsService;
+        spoolService.metrics = metrics;
+        set(spoolService, "enabled", Boolean.parseBoolean(System.getProperty("hono.spool.enabled", "true")));
+        // A fresh directory per run, records spooled by an earlier run refer to devices of an earlier fake
+        set(spoolService, "directory", System.getProperty("hono.spool.directory", Files.createTempDirectory("hono-spool").toString()));
+        set(spoolService, "segmentSizeBytes", Integer.getInteger("hono.spool.segmentSizeBytes", 16777216));
+        set(spoolService, "maxSizeBytes", Long.getLong("hono.spool.maxSizeBytes", 1073741824L));
+        set(spoolService, "drainRatePerSecond", Integer.getInteger("hono.spool.drainRatePerSecond", 200));
+        spoolService.start();
+
+        agent = new HonoAgent();
+
+        batchWriter = new BatchWriter();
+        batchWriter.eventApi = platform.getEventApi();
+        batchWriter.measurementApi = platform.getMeasurementApi();
+        batchWriter.subscriptionsService = subscriptionsService;
+        batchWriter.spoolService = spoolService;
+        batchWriter.metrics = metrics;
+        batchWriter.asyncClient = asyncClient(url, metrics);
+        set(batchWriter, "queueCapacity", Integer.getInteger("hono.writer.queueCapacity", 10000));
+        set(batchWriter, "workers", Integer.getInteger("hono.writer.workers", 4));
+        set(batchWriter, "batchSize", Integer.getInteger("hono.writer.batchSize", 100));
+        set(batchWriter, "lingerMillis", Long.getLong("hono.writer.lingerMillis", 50));
+        set(batchWriter, "tenantShare", Double.parseDouble(System.getProperty("hono.writer.tenantShare", "0.5")));
+        batchWriter.start();
+
+        deviceExecutor = new DeviceExecutor();
+        deviceExecutor.metrics = metrics;
+        set(deviceExecutor, "mode", System.getProperty("hono.executor.mode", "fixed"));
+        set(deviceExecutor, "threads", Integer.getInteger("hono.executor.threads", 0));
+        set(deviceExecutor, "stripes", Integer.getInteger("hono.executor.stripes", 256));
+        set(deviceExecutor, "tenantShare", Double.parseDouble(System.getProperty("hono.executor.tenantShare", "0.5")));
+        deviceExecutor.start();
+
+        telemetryLane = new TelemetryLane();
+        telemetryLane.metrics = metrics;
+        set(telemetryLane, "threads", Integer.getInteger("hono.lanes.telemetry.threads", 0));
+        set(telemetryLane, "stripes", Integer.getInteger("hono.lanes.telemetry.stripes", 256));
+        set(telemetryLane, "queueCapacity", Integer.getInteger("hono.lanes.telemetry.queueCapacity", 10000));
+        set(telemetryLane, "shedWatermark", Integer.getInteger("hono.lanes.telemetry.shedWatermark", Integer.getInteger("hono.flow.lowWatermark", 2500)));
+        set(telemetryLane, "policy", System.getProperty("hono.lanes.telemetry.policy", "drop-oldest"));
+        set(telemetryLane, "sampleRate", Integer.getInteger("hono.lanes.telemetry.sampleRate", 10));
+        set(telemetryLane, "tenantShare", Double.parseDouble(System.getProperty("hono.lanes.telemetry.tenantShare", "0.5")));
+        telemetryLane.start();
+
+        cumulocityClient = new CumulocityClient();
+        cumulocityClient.eventApi = platform.getEventApi();
+        cumulocityClient.inventoryApi = platform.getInventoryApi();
+        cumulocityClient.tenantOptionApi = platform.getTenantOptionApi();
+        cumulocityClient.identityApi = platform.getIdentityApi();
+        cumulocityClient.measurementApi = platform.getMeasurementApi();
+        cumulocityClient.deviceControlApi = platform.getDeviceControlApi();
+        cumulocityClient.honoAgent = agent;
+        cumulocityClient.subscriptionsService = subscriptionsService;
+        cumulocityClient.deviceCache = deviceCache;
+        cumulocityClient.lastSeenTracker = lastSeenTracker;
+        cumulocityClient.batchWriter = batchWriter;
+        cumulocityClient.deviceExecutor = deviceExecutor;
+        cumulocityClient.metrics = metrics;
+        cumulocityClient.deviceOwnership = deviceOwnership(metrics);
+        cumulocityClient.agentId = "hono_LoadTestAgent";
+        cumulocityClient.agentName = "Hono Load Test Agent";
+
+        MeasurementMapper measurementMapper = new MeasurementMapper();
+        measurementMapper.cumulocityClient = cumulocityClient;
+        measurementMapper.subscriptionsService = subscriptionsService;
+
+        HonoConfiguration honoConfiguration = new HonoConfiguration();
+        honoConfiguration.setHost(honoOptions.get("host"));
+        honoConfiguration.setPort(Integer.parseInt(honoOptions.get("port")));
+        honoConfiguration.setUsername(honoOptions.get("username"));
+        honoConfiguration.setPassword(honoOptions.get("credentials.password"));
+        honoConfiguration.setTenantid(honoOptions.get("tenantid"));
+
+        agent.subscriptionsService = subscriptionsService;
+        agent.honoConfiguration = honoConfiguration;
+        agent.cumulocityClient = cumulocityClient;
+        agent.deviceExecutor = deviceExecutor;
+        agent.telemetryLane = telemetryLane;
+        agent.measurementMapper = measurementMapper;
+        agent.metrics = metrics;
+        agent.operationDrainer = operationDrainer(platform, metrics);
+        agent.devicePreloader = devicePreloader(platform, deviceCache, metrics);
+        agent.deviceIndexSnapshot = deviceIndexSnapshot(deviceCache, agent.devicePreloader);
+        agent.telemetryAggregator = telemetryAggregator(metrics);
+        agent.payloadDecoders = payloadDecoders();
+        set(agent, "prefetch", Integer.getInteger("hono.flow.prefetch", 200));
+        set(agent, "telemetryHighWatermark", Integer.getInteger("hono.flow.highWatermark", 5000));
+        set(agent, "telemetryLowWatermark", Integer.getInteger("hono.flow.lowWatermark", 2500));
+        set(agent, "eventHighWatermark", Integer.getInteger("hono.flow.highWatermark", 5000));
+        set(agent, "eventLowWatermark", Integer.getInteger("hono.flow.lowWatermark", 2500));
+        set(agent, "commandWindow", Integer.getInteger("hono.command.window", 100));
+        set(agent, "commandQueueCapacity", Integer.getInteger("hono.command.queueCapacity", 10000));
+        set(agent, "commandTimeoutMillis", Long.getLong("hono.command.timeoutMillis", 10000));
+        set(agent, "commandMaxTimeoutMillis", Long.getLong("hono.command.maxTimeoutMillis", Long.getLong("hono.command.timeoutMillis", 10000)));
+        set(agent, "reconnectMinDelayMillis", Long.getLong("hono.reconnect.minDelayMillis", 500));
+        set(agent, "reconnectMaxDelayMillis", Long.getLong("hono.reconnect.maxDelayMillis", 60000));
+        set(agent, "dedupEnabled", Boolean.parseBoolean(System.getProperty("hono.dedup.enabled", "true")));
+        set(agent, "dedupWindowSeconds", Long.getLong("hono.dedup.windowSeconds", 600));
+        set(agent, "dedupMaxEntries", Integer.getInteger("hono.dedup.maxEntries", 200000));
+        set(agent, "payloadSampleInterval", Integer.getInteger("hono.log.payloadSampleInterval", 1000));
+        agent.init();
+    }
+
+    private DeviceIndexSnapshot deviceIndexSnapshot(DeviceIdentityCache deviceCache, DevicePreloader devicePreloader) throws Exception {
+        DeviceIndexSnapshot deviceIndexSnapshot = new DeviceIndexSnapshot();
+        deviceIndexSnapshot.deviceCache = deviceCache;
+        deviceIndexSnapshot.cumulocityClient = cumulocityClient;
+        deviceIndexSnapshot.devicePreloader = devicePreloader;
+        deviceIndexSnapshot.subscriptionsService = subscriptionsService;
+        // Disabled by default, a snapshot of an earlier run would refer to managed objects of an earlier fake
+        set(deviceIndexSnapshot, "enabled", Boolean.getBoolean("hono.snapshot.enabled"));
+        set(deviceIndexSnapshot, "directory", System.getProperty("hono.snapshot.directory", System.getProperty("java.io.tmpdir") + "/hono-snapshot"));
+        set(deviceIndexSnapshot, "maxAgeSeconds", Long.getLong("hono.snapshot.maxAgeSeconds", 86400));
+        return deviceIndexSnapshot;
+    }
+
+    private AsyncPlatformClient asyncClient(String url, AgentMetrics metrics) throws Exception {
+        AsyncPlatformClient asyncClient = new AsyncPlatformClient();
+        asyncClient.honoAgent = agent;
+        asyncClient.subscriptionsService = subscriptionsService;
+        asyncClient.metrics = metrics;
+        set(asyncClient, "client", System.getProperty("hono.writer.client", "sdk"));
+        set(asyncClient, "baseUrl", url);
+        set(asyncClient, "maxConnections", Integer.getInteger("hono.writer.async.maxConnections", 16));
+        set(asyncClient, "maxInFlight", Integer.getInteger("hono.writer.async.maxInFlight", 1000));
+        set(asyncClient, "http2", Boolean.parseBoolean(System.getProperty("hono.writer.async.http2", "true")));
+        set(asyncClient, "pipelining", Boolean.getBoolean("hono.writer.async.pipelining"));
+        set(asyncClient, "timeoutMillis", Long.getLong("hono.writer.async.timeoutMillis", 30000));
+        asyncClient.start();
+        return asyncClient;
+    }
+
+    private static PayloadDecoders payloadDecoders() throws Exception {
+        PayloadDecoders payloadDecoders = new PayloadDecoders();
+        set(payloadDecoders, "base64Types", System.getProperty("hono.decoder.base64Types", ""));
+        set(payloadDecoders, "protobufSchema", System.getProperty("hono.decoder.protobuf.schema", ""));
+        set(payloadDecoders, "protobufMessageType", System.getProperty("hono.decoder.protobuf.messageType", ""));
+        payloadDecoders.init();
+        return payloadDecoders;
+    }
+
+    private static DeviceOwnership deviceOwnership(AgentMetrics metrics) throws Exception {
+        DeviceOwnership deviceOwnership = new DeviceOwnership();
+        deviceOwnership.metrics = metrics;
+        set(deviceOwnership, "members", System.getProperty("hono.cluster.members", ""));
+        set(deviceOwnership, "self", System.getProperty("hono.cluster.self", ""));
+        set(deviceOwnership, "virtualNodes", Integer.getInteger("hono.cluster.virtualNodes", 128));
+        set(deviceOwnership, "aggregationEnabled", Boolean.getBoolean("hono.aggregation.enabled"));
+        set(deviceOwnership, "dedupEnabled", Boolean.parseBoolean(System.getProperty("hono.dedup.enabled", "true")));
+        deviceOwnership.init();
+        return deviceOwnership;
+    }
+
+    private TelemetryAggregator telemetryAggregator(AgentMetrics metrics) throws Exception {
+        TelemetryAggregator telemetryAggregator = new TelemetryAggregator();
+        telemetryAggregator.cumulocityClient = cumulocityClient;
+        telemetryAggregator.subscriptionsService = subscriptionsService;
+        telemetryAggregator.metrics = metrics;
+        // Without a scheduler, windows are only closed by the next sample of the device
+        set(telemetryAggregator, "enabled", Boolean.getBoolean("hono.aggregation.enabled"));
+        set(telemetryAggregator, "windowSeconds", Long.getLong("hono.aggregation.windowSeconds", 60));
+        set(telemetryAggregator, "maxDevices", Integer.getInteger("hono.aggregation.maxDevices", 100000));
+        telemetryAggregator.init();
+        return telemetryAggregator;
+    }
+
+    private DevicePreloader devicePreloader(Platform platform, DeviceIdentityCache deviceCache, AgentMetrics metrics) throws Exception {
+        DevicePreloader devicePreloader = new DevicePreloader();
+        devicePreloader.inventoryApi = platform.getInventoryApi();
+        devicePreloader.identityApi = platform.getIdentityApi();
+        devicePreloader.deviceCache = deviceCache;
+        devicePreloader.subscriptionsService = subscriptionsService;
+        devicePreloader.metrics = metrics;
+        set(devicePreloader, "enabled", Boolean.parseBoolean(System.getProperty("hono.preload.enabled", "true")));
+        set(devicePreloader, "pageSize", Integer.getInteger("hono.preload.pageSize", 2000));
+        set(devicePreloader, "identityConcurrency", Integer.getInteger("hono.preload.identityConcurrency", 8));
+        devicePreloader.start();
+        return devicePreloader;
+    }
+
+    private OperationDrainer operationDrainer(Platform platform, AgentMetrics metrics) throws Exception {
+        OperationDrainer operationDrainer = new OperationDrainer();
+        operationDrainer.cumulocityClient = cumulocityClient;
+        operationDrainer.deviceControlApi = platform.getDeviceControlApi();
+        operationDrainer.subscriptionsService = subscriptionsService;
+        operationDrainer.metrics = metrics;
+        operationDrainer.deviceOwnership = cumulocityClient.deviceOwnership;
+        set(operationDrainer, "concurrency", Integer.getInteger("hono.operations.drainConcurrency", 32));
+        set(operationDrainer, "pageSize", Integer.getInteger("hono.operations.drainPageSize", 500));
+        operationDrainer.start();
+        return operationDrainer;
+    }
+
+    /**
+     * Single tenant stand-in for the subscription service, the SDK APIs always use the credentials of the test tenant.
+     */
+    private static MicroserviceSubscriptionsService subscriptionsService() {
+        return (MicroserviceSubscriptionsService) Proxy.newProxyInstance(LoadTest.class.getClassLoader(),
+                new Class<?>[]{MicroserviceSubscriptionsService.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getTenant":
+                            return TENANT;
+                        case "runForTenant":
+                            ((Runnable) args[1]).run();
+                            return null;
+                        case "runForEachTenant":
+                            ((Runnable) args[0]).run();
+                            return null;
+                        case "callForTenant":
+                            return ((Callable<?>) args[1]).call();
+                        case "getCredentials":
+                            return Optional.of(MicroserviceCredentials.builder()
+                                    .tenant(TENANT).username("loadtest").password("loadtest").build());
+                        case "getAll":
+                            return Collections.singletonList(MicroserviceCredentials.builder()
+                                    .tenant(TENANT).username("loadtest").password("loadtest").build());
+                        case "toString":
+                            return "LoadTestSubscriptionsService";
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    private static void set(Object target, String field, Object value) throws ReflectiveOperationException {
+        Field f = target.getClass().getDeclaredField(field);
+        f.setAccessible(true);
+        f.set(target, value);
+    }
+}
@@ -0,0 +1,38 @@
+package honoagent.config;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.SchedulingConfigurer;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.scheduling.config.ScheduledTaskRegistrar;
+
+/**
+ * Runs the {@code @Scheduled} jobs of the agent on a pool of {@code hono.scheduler.poolSize} threads.
+ * <p>
+ * Spring runs them on a single thread by default, a slow last-seen flush would then delay the closing of aggregation
+ * windows and the writing of the device index snapshot.
+ */
+@Configuration
+public class SchedulingConfiguration implements SchedulingConfigurer, DisposableBean {
+
+    @Value("${hono.scheduler.poolSize:4}")
+    private int poolSize;
+
+    private ThreadPoolTaskScheduler scheduler;
+
+    @Override
+    public void configureTasks(ScheduledTaskRegistrar registrar) {
+        scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(poolSize);
+        scheduler.setThreadNamePrefix("hono-scheduler-");
+        scheduler.initialize();
+        registrar.setTaskScheduler(scheduler);
+    }
+
+    @Override
+    public void destroy() {
+        if (scheduler != null)
+            scheduler.shutdown();
+    }
+}
@@ -0,0 +1,138 @@
+package honoagent.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Central place for the meters of the ingest and command pipelines, exposed through the actuator endpoints.
+ * <p>
+ * Stage timers are published as {@code hono.agent.stage} tagged with the stage name, REST calls as
+ * {@code hono.agent.rest} tagged with the API operation. Meters are created once and cached by name so recording
+ * on the hot path is a map lookup.
+ */
+@Component
+public class AgentMetrics {
+
+    public static final String STAGE_RECEIVE = "amqp.receive";
+    public static final String STAGE_DECODE = "payload.decode";
+    public static final String STAGE_UPSERT = "upsertHonoDevice";
+    public static final String STAGE_ASSIGNMENT = "checkAgentAssignment";
+    public static final String STAGE_WRITE = "c8y.write";
+    public static final String STAGE_COMMAND = "command";
+
+    @Autowired
+    MeterRegistry registry;
+
+    private final ConcurrentMap<String, Timer> stageTimers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Timer> restTimers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private final AtomicInteger restInFlight = new AtomicInteger();
+
+    @PostConstruct
+    public void init() {
+        registry.gauge("hono.agent.rest.inflight", restInFlight);
+    }
+
+    public long start() {
+        return System.nanoTime();
+    }
+
+    public void recordStage(String stage, long startNanos) {
+        stageTimer(stage).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public <T> T stage(String stage, Supplier<T> action) {
+        long start = start();
+        try {
+            return action.get();
+        } finally {
+            recordStage(stage, start);
+        }
+    }
+
+    public void stage(String stage, Runnable action) {
+        long start = start();
+        try {
+            action.run();
+        } finally {
+            recordStage(stage, start);
+        }
+    }
+
+    /**
+     * Times a blocking REST call and counts it as in flight while it runs.
+     */
+    public <T> T rest(String api, Supplier<T> call) {
+        long start = restStarted();
+        try {
+            return call.get();
+        } finally {
+            restCompleted(api, start);
+        }
+    }
+
+    /**
+     * Counts a non-blocking REST call as in flight until {@link #restCompleted(String, long)} is called.
+     */
+    public long restStarted() {
+        restInFlight.incrementAndGet();
+        return start();
+    }
+
+    public void restCompleted(String api, long startNanos) {
+        restTimers.computeIfAbsent(api, a -> Timer.builder("hono.agent.rest")
+                .tag("api", a)
+                .publishPercentileHistogram()
+                .register(registry))
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        restInFlight.decrementAndGet();
+    }
+
+    public void increment(String name) {
+        counters.computeIfAbsent(name, n -> registry.counter(n)).increment();
+    }
+
+    public <T> void gauge(String name, T object, ToDoubleFunction<T> value) {
+        registry.gauge(name, object, value);
+    }
+
+    /**
+     * Registers a tagged gauge. Meters of an object that goes away, like a tenant connection, must be removed with
+     * {@link #remove(Meter)}, otherwise the registry keeps the object and ignores the gauges of its successor.
+     */
+    public <T> Gauge gauge(String name, String tagKey, String tagValue, T object, ToDoubleFunction<T> value) {
+        return Gauge.builder(name, object, value).tag(tagKey, tagValue).register(registry);
+    }
+
+    /**
+     * Registers a tagged counter that reads a monotonically increasing count from the object.
+     */
+    public <T> FunctionCounter counter(String name, String tagKey, String tagValue, T object, ToDoubleFunction<T> count) {
+        return FunctionCounter.builder(name, object, count).tag(tagKey, tagValue).register(registry);
+    }
+
+    public void remove(Meter meter) {
+        registry.remove(meter);
+    }
+
+    private Timer stageTimer(String stage) {
+        return stageTimers.computeIfAbsent(stage, s -> Timer.builder("hono.agent.stage")
+                .tag("stage", s)
+                .publishPercentileHistogram()
+                .register(registry));
+    }
+}
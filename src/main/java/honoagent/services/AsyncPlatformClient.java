@@ -0,0 +1,206 @@
+package honoagent.services;
+
+import com.cumulocity.microservice.subscription.model.core.MicroserviceCredentials;
+import com.cumulocity.microservice.subscription.service.MicroserviceSubscriptionsService;
+import com.cumulocity.model.JSONBase;
+import com.cumulocity.rest.representation.event.EventRepresentation;
+import com.cumulocity.rest.representation.measurement.MeasurementCollectionRepresentation;
+import com.cumulocity.rest.representation.measurement.MeasurementRepresentation;
+import com.cumulocity.sdk.client.SDKException;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpVersion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking client for the Cumulocity REST endpoints on the ingest path, used by the {@link BatchWriter} when
+ * {@code hono.writer.client} is {@code async}.
+ * <p>
+ * Requests are sent with a Vert.x {@link HttpClient} on the Vert.x instance of the agent, so a write does not hold a
+ * thread while it is in flight. Connections are kept alive in a pool of {@code hono.writer.async.maxConnections} and
+ * HTTP/2 is negotiated if the platform supports it. HTTP/1.1 pipelining is off unless
+ * {@code hono.writer.async.pipelining} is set, as a slow request would hold up the ones queued behind it. At most
+ * {@code hono.writer.async.maxInFlight} requests are in flight, callers block beyond that.
+ * <p>
+ * Bodies are serialized with the same generator as the SDK, so fragments like {@link RawJson} are written the same way.
+ * A response with an error status fails the result with an {@link SDKException} carrying the status.
+ */
+@Component
+public class AsyncPlatformClient {
+
+    final Logger logger = LoggerFactory.getLogger(AsyncPlatformClient.class);
+
+    static final String CLIENT_SDK = "sdk";
+    static final String CLIENT_ASYNC = "async";
+    private static final String EVENT_MEDIA_TYPE = "application/vnd.com.nsn.cumulocity.event+json";
+    private static final String MEASUREMENT_MEDIA_TYPE = "application/vnd.com.nsn.cumulocity.measurement+json";
+    private static final String MEASUREMENT_COLLECTION_MEDIA_TYPE = "application/vnd.com.nsn.cumulocity.measurementCollection+json";
+
+    @Autowired
+    HonoAgent honoAgent;
+
+    @Autowired
+    MicroserviceSubscriptionsService subscriptionsService;
+
+    @Autowired
+    AgentMetrics metrics;
+
+    @Value("${hono.writer.client:sdk}")
+    private String client;
+
+    @Value("${C8Y.baseURL:http://cumulocity:8111}")
+    private String baseUrl;
+
+    @Value("${hono.writer.async.maxConnections:16}")
+    private int maxConnections;
+
+    @Value("${hono.writer.async.maxInFlight:1000}")
+    private int maxInFlight;
+
+    @Value("${hono.writer.async.http2:true}")
+    private boolean http2;
+
+    @Value("${hono.writer.async.pipelining:false}")
+    private boolean pipelining;
+
+    @Value("${hono.writer.async.timeoutMillis:30000}")
+    private long timeoutMillis;
+
+    private final ConcurrentMap<String, String> authorizations = new ConcurrentHashMap<>();
+    private Semaphore inFlight;
+    private HttpClient httpClient;
+
+    @PostConstruct
+    public void start() {
+        if (!CLIENT_ASYNC.equals(client)) {
+            if (!CLIENT_SDK.equals(client))
+                throw new IllegalArgumentException("hono.writer.client must be '" + CLIENT_SDK + "' or '" + CLIENT_ASYNC + "': " + client);
+            return;
+        }
+        URI uri = URI.create(baseUrl);
+        boolean ssl = "https".equalsIgnoreCase(uri.getScheme());
+        HttpClientOptions options = new HttpClientOptions()
+                .setDefaultHost(uri.getHost())
+                .setDefaultPort(uri.getPort() != -1 ? uri.getPort() : ssl ? 443 : 80)
+                .setSsl(ssl)
+                .setKeepAlive(true)
+                .setMaxPoolSize(maxConnections)
+                .setPipelining(pipelining)
+                .setTryUseCompression(true);
+        if (http2) {
+            // Falls back to HTTP/1.1 if the platform does not accept the upgrade
+            options.setProtocolVersion(HttpVersion.HTTP_2)
+                    .setUseAlpn(ssl)
+                    .setHttp2ClearTextUpgrade(!ssl)
+                    .setHttp2MaxPoolSize(Math.max(1, maxConnections / 4));
+        }
+        inFlight = new Semaphore(maxInFlight);
+        httpClient = honoAgent.getVertx().createHttpClient(options);
+        logger.info("Async platform client for {} started with {} connections and {} requests in flight", baseUrl, maxConnections, maxInFlight);
+    }
+
+    public boolean isEnabled() {
+        return httpClient != null;
+    }
+
+    public CompletableFuture<EventRepresentation> createEvent(String tenant, EventRepresentation event) {
+        return post(tenant, "/event/events", EVENT_MEDIA_TYPE, event, EventRepresentation.class, "event.create");
+    }
+
+    public CompletableFuture<MeasurementRepresentation> createMeasurement(String tenant, MeasurementRepresentation measurement) {
+        return post(tenant, "/measurement/measurements", MEASUREMENT_MEDIA_TYPE, measurement, MeasurementRepresentation.class, "measurement.create");
+    }
+
+    public CompletableFuture<MeasurementCollectionRepresentation> createMeasurements(String tenant, MeasurementCollectionRepresentation measurements) {
+        return post(tenant, "/measurement/measurements", MEASUREMENT_COLLECTION_MEDIA_TYPE, measurements, MeasurementCollectionRepresentation.class, "measurement.createBulk");
+    }
+
+    private <T> CompletableFuture<T> post(String tenant, String path, String mediaType, Object body, Class<T> resultType, String api) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        String json;
+        String authorization;
+        try {
+            json = JSONBase.getJSONGenerator().forValue(body);
+            authorization = authorization(tenant);
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        inFlight.acquireUninterruptibly();
+        long start = metrics.restStarted();
+        result.whenComplete((r, e) -> {
+            metrics.restCompleted(api, start);
+            inFlight.release();
+        });
+        try {
+            HttpClientRequest request = httpClient.post(path, response -> {
+                response.exceptionHandler(result::completeExceptionally);
+                response.bodyHandler(buffer -> complete(tenant, response, buffer, resultType, result));
+            });
+            request.exceptionHandler(result::completeExceptionally);
+            request.setTimeout(timeoutMillis);
+            request.putHeader("Authorization", authorization);
+            request.putHeader("Content-Type", mediaType);
+            request.putHeader("Accept", mediaType);
+            request.end(json);
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private <T> void complete(String tenant, HttpClientResponse response, Buffer buffer, Class<T> resultType, CompletableFuture<T> result) {
+        int status = response.statusCode();
+        if (status >= 200 && status < 300) {
+            try {
+                result.complete(buffer.length() > 0 ? JSONBase.getJSONParser().parse(resultType, buffer.toString(StandardCharsets.UTF_8)) : null);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+            return;
+        }
+        if (status == 401)
+            authorizations.remove(tenant);
+        result.completeExceptionally(new SDKException(status, "Http status code: " + status + " " + buffer.toString(StandardCharsets.UTF_8)));
+    }
+
+    private String authorization(String tenant) {
+        return authorizations.computeIfAbsent(tenant, t -> {
+            MicroserviceCredentials credentials = subscriptionsService.getCredentials(t)
+                    .orElseThrow(() -> new IllegalStateException("No credentials for tenant " + t));
+            String user = t + "/" + credentials.getUsername() + ":" + credentials.getPassword();
+            return "Basic " + Base64.getEncoder().encodeToString(user.getBytes(StandardCharsets.UTF_8));
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (httpClient == null)
+            return;
+        try {
+            if (!inFlight.tryAcquire(maxInFlight, 10, TimeUnit.SECONDS))
+                logger.warn("Async platform client closed with {} requests in flight", maxInFlight - inFlight.availablePermits());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        httpClient.close();
+    }
+}
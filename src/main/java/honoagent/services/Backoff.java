@@ -0,0 +1,37 @@
+package honoagent.services;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with jitter.
+ * <p>
+ * The n-th delay is drawn from the upper half of {@code min(maxDelayMillis, minDelayMillis * 2^n)}, so delays keep
+ * growing while agents that lost their connection at the same time spread their retries.
+ */
+class Backoff {
+
+    private final long minDelayMillis;
+    private final long maxDelayMillis;
+    private int attempts;
+
+    Backoff(long minDelayMillis, long maxDelayMillis) {
+        this.minDelayMillis = Math.max(1, minDelayMillis);
+        this.maxDelayMillis = Math.max(this.minDelayMillis, maxDelayMillis);
+    }
+
+    long nextDelayMillis() {
+        // Limit the shift so that the delay cannot overflow
+        long ceiling = Math.min(maxDelayMillis, minDelayMillis << Math.min(attempts, 30));
+        attempts++;
+        long half = ceiling / 2;
+        return half + ThreadLocalRandom.current().nextLong(ceiling - half + 1);
+    }
+
+    int getAttempts() {
+        return attempts;
+    }
+
+    void reset() {
+        attempts = 0;
+    }
+}
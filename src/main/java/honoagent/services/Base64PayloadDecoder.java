@@ -0,0 +1,26 @@
+package honoagent.services;
+
+import io.vertx.core.json.JsonObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Passes opaque binary payloads through as {@code {"base64": "..."}} instead of decoding them as text, which would
+ * replace invalid UTF-8 sequences.
+ */
+final class Base64PayloadDecoder implements PayloadDecoder {
+
+    static final String BASE64 = "base64";
+
+    @Override
+    public JsonObject decode(byte[] bytes, int offset, int length, String contentType) {
+        return encode(bytes, offset, length);
+    }
+
+    static JsonObject encode(byte[] bytes, int offset, int length) {
+        ByteBuffer encoded = Base64.getEncoder().encode(ByteBuffer.wrap(bytes, offset, length));
+        return new JsonObject().put(BASE64, new String(encoded.array(), 0, encoded.limit(), StandardCharsets.ISO_8859_1));
+    }
+}
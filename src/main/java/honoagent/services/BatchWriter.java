@@ -0,0 +1,401 @@
+package honoagent.services;
+
+import com.cumulocity.microservice.subscription.service.MicroserviceSubscriptionsService;
+import com.cumulocity.rest.representation.event.EventRepresentation;
+import com.cumulocity.rest.representation.inventory.ManagedObjectRepresentation;
+import com.cumulocity.rest.representation.measurement.MeasurementCollectionRepresentation;
+import com.cumulocity.rest.representation.measurement.MeasurementRepresentation;
+import com.cumulocity.sdk.client.event.EventApi;
+import com.cumulocity.sdk.client.measurement.MeasurementApi;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous writer for events and measurements.
+ * <p>
+ * Every sender thread has its own bounded queue, a write is queued for the sender chosen by the hash of its tenant and
+ * source, so the writes of a device are sent in order by a single sender. Each sender collects up to
+ * {@code batchSize} items or waits at most {@code lingerMillis} before sending what it has. Measurements of a batch
+ * are created with a single bulk request, events are created one by one as the event API has no bulk endpoint.
+ * The result of every item is reported through its own future.
+ * <p>
+ * With {@code hono.writer.client=async} the batches are sent with the non-blocking {@link AsyncPlatformClient}
+ * instead of the SDK, a sender then only waits when the client has reached its limit of requests in flight. Results
+ * are completed on callback threads instead of the Vert.x event loop, and an event is only sent once the previous
+ * event of the same device has been written, so the events of a device are created in order.
+ * <p>
+ * A tenant may have at most {@code hono.writer.tenantShare} of the queue capacity queued or in flight, so a tenant
+ * with a slow platform cannot fill the queue for the other tenants.
+ * <p>
+ * A write that finds the queue of its sender or the share of its tenant full fails with a
+ * {@link RejectedExecutionException} as backpressure to the caller and is counted in {@code hono.agent.writer.rejected}.
+ * If a write fails because the platform is unavailable, the item is handed to the {@link SpoolService} and reported
+ * as successful once it is stored in the spool. Depending on {@code hono.spool.forceIntervalMillis} it is forced to
+ * disk right away or with the next periodic force.
+ */
+@Component
+public class BatchWriter {
+
+    final Logger logger = LoggerFactory.getLogger(BatchWriter.class);
+
+    @Autowired
+    EventApi eventApi;
+
+    @Autowired
+    MeasurementApi measurementApi;
+
+    @Autowired
+    MicroserviceSubscriptionsService subscriptionsService;
+
+    @Autowired
+    SpoolService spoolService;
+
+    @Autowired
+    AgentMetrics metrics;
+
+    @Autowired
+    AsyncPlatformClient asyncClient;
+
+    @Value("${hono.writer.queueCapacity:10000}")
+    private int queueCapacity;
+
+    @Value("${hono.writer.workers:4}")
+    private int workers;
+
+    @Value("${hono.writer.batchSize:100}")
+    private int batchSize;
+
+    @Value("${hono.writer.lingerMillis:50}")
+    private long lingerMillis;
+
+    @Value("${hono.writer.tenantShare:0.5}")
+    private double tenantShare;
+
+    // Queue per sender, a write goes to the queue of its device
+    private final List<BlockingQueue<WriteRequest<?>>> queues = new ArrayList<>();
+    private ExecutorService senders;
+    private ThreadPoolExecutor callbacks;
+    private int maxWritesPerTenant;
+    // Writes per tenant that are queued or in flight
+    private final ConcurrentMap<String, AtomicInteger> tenantWrites = new ConcurrentHashMap<>();
+    // Last event per device sent with the async client, the next event of the device waits for it
+    private final ConcurrentMap<String, CompletableFuture<Void>> eventTails = new ConcurrentHashMap<>();
+    private volatile boolean running;
+
+    @PostConstruct
+    public void start() {
+        maxWritesPerTenant = (int) Math.ceil(queueCapacity * tenantShare);
+        AtomicInteger threadCount = new AtomicInteger();
+        senders = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "c8y-writer-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger callbackCount = new AtomicInteger();
+        // Results of the async client are completed off the event loop, as spooling and dependent stages may block.
+        // Callbacks after shutdown run on the calling thread, the results of requests still in flight are not lost.
+        callbacks = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "c8y-writer-callback-" + callbackCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, (runnable, executor) -> runnable.run());
+        running = true;
+        metrics.gauge("hono.agent.writer.queue", this, BatchWriter::getQueueSize);
+        for (int i = 0; i < workers; i++) {
+            BlockingQueue<WriteRequest<?>> queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity / workers));
+            queues.add(queue);
+            senders.execute(() -> runSender(queue));
+        }
+        logger.info("Batch writer started with {} workers, batch size {} and linger time {} ms", workers, batchSize, lingerMillis);
+    }
+
+    public CompletableFuture<EventRepresentation> submitEvent(EventRepresentation event) {
+        return submit(new WriteRequest<EventRepresentation>(subscriptionsService.getTenant(), event));
+    }
+
+    public CompletableFuture<MeasurementRepresentation> submitMeasurement(MeasurementRepresentation measurement) {
+        return submit(new WriteRequest<MeasurementRepresentation>(subscriptionsService.getTenant(), measurement));
+    }
+
+    public int getQueueSize() {
+        int size = 0;
+        for (BlockingQueue<WriteRequest<?>> queue : queues) {
+            size += queue.size();
+        }
+        return size;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    private <T> CompletableFuture<T> submit(WriteRequest<T> request) {
+        long start = metrics.start();
+        request.result.whenComplete((result, e) -> metrics.recordStage(AgentMetrics.STAGE_WRITE, start));
+        AtomicInteger writes = tenantWrites.computeIfAbsent(request.tenant, t -> new AtomicInteger());
+        // The share only applies while more than one tenant writes
+        if (writes.incrementAndGet() > maxWritesPerTenant && tenantWrites.size() > 1) {
+            writes.decrementAndGet();
+            reject(request, "Write share of tenant " + request.tenant + " is full");
+            return request.result;
+        }
+        request.result.whenComplete((result, e) -> writes.decrementAndGet());
+        if (!running || !queueOf(request).offer(request)) {
+            reject(request, "Write queue is full");
+        }
+        return request.result;
+    }
+
+    /**
+     * Returns the queue of the sender for the source of the write, so all writes of a device go to the same sender.
+     */
+    private BlockingQueue<WriteRequest<?>> queueOf(WriteRequest<?> request) {
+        ManagedObjectRepresentation source = request.representation instanceof MeasurementRepresentation
+                ? ((MeasurementRepresentation) request.representation).getSource()
+                : ((EventRepresentation) request.representation).getSource();
+        String key = source != null && source.getId() != null ? request.tenant + "/" + source.getId().getValue() : request.tenant;
+        int hash = key.hashCode();
+        return queues.get(Math.floorMod(hash ^ (hash >>> 16), queues.size()));
+    }
+
+    /**
+     * Fails a write that cannot be queued. It is not spooled, the caller has to slow down instead.
+     */
+    private void reject(WriteRequest<?> request, String reason) {
+        metrics.increment("hono.agent.writer.rejected");
+        request.result.completeExceptionally(new RejectedExecutionException(reason));
+    }
+
+    private void failOrSpool(WriteRequest<?> request, Throwable cause) {
+        if (spoolService.isEnabled() && SpoolService.isRetryable(cause)) {
+            boolean stored = request.representation instanceof MeasurementRepresentation
+                    ? spoolService.storeMeasurement(request.tenant, (MeasurementRepresentation) request.representation)
+                    : spoolService.storeEvent(request.tenant, (EventRepresentation) request.representation);
+            if (stored) {
+                request.complete();
+                return;
+            }
+        }
+        request.result.completeExceptionally(cause);
+    }
+
+    private void runSender(BlockingQueue<WriteRequest<?>> queue) {
+        List<WriteRequest<?>> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                WriteRequest<?> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+                while (batch.size() < batchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    WriteRequest<?> next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        queue.drainTo(batch, batchSize - batch.size());
+                        break;
+                    }
+                    batch.add(next);
+                }
+                send(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                logger.error("Error on sending batch", e);
+                for (WriteRequest<?> request : batch) {
+                    if (!request.result.isDone())
+                        failOrSpool(request, e);
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void send(List<WriteRequest<?>> batch) {
+        Map<String, List<WriteRequest<?>>> byTenant = new LinkedHashMap<>();
+        for (WriteRequest<?> request : batch) {
+            byTenant.computeIfAbsent(request.tenant, t -> new ArrayList<>()).add(request);
+        }
+        for (Map.Entry<String, List<WriteRequest<?>>> entry : byTenant.entrySet()) {
+            if (asyncClient.isEnabled())
+                sendAsync(entry.getKey(), entry.getValue());
+            else
+                subscriptionsService.runForTenant(entry.getKey(), () -> sendForTenant(entry.getValue()));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void sendAsync(String tenant, List<WriteRequest<?>> requests) {
+        List<WriteRequest<MeasurementRepresentation>> measurements = new ArrayList<>();
+        for (WriteRequest<?> request : requests) {
+            if (request.representation instanceof MeasurementRepresentation)
+                measurements.add((WriteRequest<MeasurementRepresentation>) request);
+            else
+                sendEventAsync(tenant, (WriteRequest<EventRepresentation>) request);
+        }
+        if (measurements.size() == 1) {
+            WriteRequest<MeasurementRepresentation> request = measurements.get(0);
+            asyncClient.createMeasurement(tenant, request.representation).whenCompleteAsync((created, e) -> {
+                if (e != null)
+                    failOrSpool(request, e);
+                else
+                    request.result.complete(created);
+            }, callbacks);
+        } else if (!measurements.isEmpty()) {
+            asyncClient.createMeasurements(tenant, toCollection(measurements)).whenCompleteAsync((created, e) -> {
+                if (e != null) {
+                    for (WriteRequest<MeasurementRepresentation> request : measurements) {
+                        failOrSpool(request, e);
+                    }
+                } else {
+                    completeBulk(measurements, created != null ? created.getMeasurements() : null);
+                }
+            }, callbacks);
+        }
+    }
+
+    /**
+     * Sends the event once the previous event of its device has been written or spooled.
+     */
+    private void sendEventAsync(String tenant, WriteRequest<EventRepresentation> request) {
+        String device = request.representation.getSource() != null && request.representation.getSource().getId() != null
+                ? tenant + "/" + request.representation.getSource().getId().getValue() : null;
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        CompletableFuture<Void> previous = device != null ? eventTails.put(device, done) : null;
+        Runnable send = () -> {
+            try {
+                asyncClient.createEvent(tenant, request.representation).whenCompleteAsync((created, e) -> {
+                    try {
+                        if (e != null)
+                            failOrSpool(request, e);
+                        else
+                            request.result.complete(created);
+                    } finally {
+                        eventWritten(device, done);
+                    }
+                }, callbacks);
+            } catch (RuntimeException e) {
+                failOrSpool(request, e);
+                eventWritten(device, done);
+            }
+        };
+        if (previous == null)
+            send.run();
+        else
+            previous.whenComplete((v, e) -> send.run());
+    }
+
+    private void eventWritten(String device, CompletableFuture<Void> done) {
+        if (device != null)
+            eventTails.remove(device, done);
+        done.complete(null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void sendForTenant(List<WriteRequest<?>> requests) {
+        List<WriteRequest<MeasurementRepresentation>> measurements = new ArrayList<>();
+        for (WriteRequest<?> request : requests) {
+            if (request.representation instanceof MeasurementRepresentation) {
+                measurements.add((WriteRequest<MeasurementRepresentation>) request);
+            } else {
+                WriteRequest<EventRepresentation> eventRequest = (WriteRequest<EventRepresentation>) request;
+                try {
+                    eventRequest.result.complete(metrics.rest("event.create", () -> eventApi.create(eventRequest.representation)));
+                } catch (Exception e) {
+                    failOrSpool(eventRequest, e);
+                }
+            }
+        }
+        if (measurements.size() == 1) {
+            WriteRequest<MeasurementRepresentation> request = measurements.get(0);
+            try {
+                request.result.complete(metrics.rest("measurement.create", () -> measurementApi.create(request.representation)));
+            } catch (Exception e) {
+                failOrSpool(request, e);
+            }
+        } else if (!measurements.isEmpty()) {
+            sendMeasurementBulk(measurements);
+        }
+    }
+
+    private void sendMeasurementBulk(List<WriteRequest<MeasurementRepresentation>> requests) {
+        MeasurementCollectionRepresentation collection = toCollection(requests);
+        try {
+            completeBulk(requests, metrics.rest("measurement.createBulk", () -> measurementApi.createBulk(collection)).getMeasurements());
+        } catch (Exception e) {
+            for (WriteRequest<MeasurementRepresentation> request : requests) {
+                failOrSpool(request, e);
+            }
+        }
+    }
+
+    private static MeasurementCollectionRepresentation toCollection(List<WriteRequest<MeasurementRepresentation>> requests) {
+        List<MeasurementRepresentation> representations = new ArrayList<>(requests.size());
+        for (WriteRequest<MeasurementRepresentation> request : requests) {
+            representations.add(request.representation);
+        }
+        MeasurementCollectionRepresentation collection = new MeasurementCollectionRepresentation();
+        collection.setMeasurements(representations);
+        return collection;
+    }
+
+    private static void completeBulk(List<WriteRequest<MeasurementRepresentation>> requests, List<MeasurementRepresentation> created) {
+        for (int i = 0; i < requests.size(); i++) {
+            MeasurementRepresentation result = created != null && created.size() == requests.size() ? created.get(i) : requests.get(i).representation;
+            requests.get(i).result.complete(result);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        logger.info("Stopping batch writer with {} pending writes...", getQueueSize());
+        running = false;
+        senders.shutdown();
+        try {
+            if (!senders.awaitTermination(10, TimeUnit.SECONDS))
+                logger.warn("Batch writer did not finish in time, {} writes are lost", getQueueSize());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        callbacks.shutdown();
+    }
+
+    private static final class WriteRequest<T> {
+        final String tenant;
+        final T representation;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+
+        WriteRequest(String tenant, T representation) {
+            this.tenant = tenant;
+            this.representation = representation;
+        }
+
+        void complete() {
+            result.complete(representation);
+        }
+    }
+}
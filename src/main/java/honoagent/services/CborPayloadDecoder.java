@@ -0,0 +1,57 @@
+package honoagent.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import io.vertx.core.json.JsonObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes CBOR (RFC 7049) payloads. Maps become JSON objects, byte strings become base64 strings as in Vert.x JSON.
+ * The byte strings are converted when decoding, so that the map of the object only holds JSON types when it is
+ * serialized into an event.
+ */
+final class CborPayloadDecoder implements PayloadDecoder {
+
+    private final ObjectReader reader = new ObjectMapper(new CBORFactory()).readerFor(Map.class);
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public JsonObject decode(byte[] bytes, int offset, int length, String contentType) throws IOException {
+        try {
+            return new JsonObject((Map<String, Object>) toJson(reader.readValue(bytes, offset, length)));
+        } catch (JsonProcessingException e) {
+            // Also thrown if the root is not a map
+            return null;
+        }
+    }
+
+    private static Object toJson(Object value) {
+        if (value instanceof byte[])
+            return Base64.getEncoder().encodeToString((byte[]) value);
+        if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            Map<String, Object> json = new LinkedHashMap<>(map.size() * 4 / 3 + 1);
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                json.put(String.valueOf(entry.getKey()), toJson(entry.getValue()));
+            }
+            return json;
+        }
+        if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            List<Object> json = new ArrayList<>(list.size());
+            for (Object element : list) {
+                json.add(toJson(element));
+            }
+            return json;
+        }
+        return value;
+    }
+}
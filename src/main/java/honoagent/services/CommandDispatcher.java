@@ -0,0 +1,200 @@
+package honoagent.services;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import org.eclipse.hono.client.CommandClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Sends the commands of one tenant through its Hono command client with a bounded number of commands in flight.
+ * <p>
+ * Commands submitted while no command client is attached, e.g. during startup or a reconnect, are queued and sent
+ * once the client is available. Every command has its own deadline after submission, {@code timeoutMillis} unless the
+ * command sets a timeout of at most {@code maxTimeoutMillis}, which covers both the time in the queue and the request
+ * itself. A command that expires in the queue is never sent. A command that expires in flight is failed, but keeps its
+ * slot of the window until Hono completes the request or times it out after {@code maxTimeoutMillis}, so that no more
+ * than {@code window} requests are ever outstanding at Hono.
+ * <p>
+ * All state is confined to a Vert.x context owned by the dispatcher, the public methods may be called from any
+ * thread. The returned futures are completed on that context.
+ */
+class CommandDispatcher {
+
+    final Logger logger = LoggerFactory.getLogger(CommandDispatcher.class);
+
+    private final String tenant;
+    private final Context context;
+    private final int window;
+    private final int queueCapacity;
+    private final long timeoutMillis;
+    private final long maxTimeoutMillis;
+
+    private final Set<PendingCommand<?>> queued = new LinkedHashSet<>();
+    private final Set<PendingCommand<?>> inFlight = new LinkedHashSet<>();
+    private CommandClient client;
+    private volatile int queuedCount;
+    private volatile int inFlightCount;
+
+    CommandDispatcher(String tenant, Vertx vertx, int window, int queueCapacity, long timeoutMillis, long maxTimeoutMillis) {
+        this.tenant = tenant;
+        this.context = vertx.getOrCreateContext();
+        this.window = window;
+        this.queueCapacity = queueCapacity;
+        this.timeoutMillis = timeoutMillis;
+        this.maxTimeoutMillis = Math.max(timeoutMillis, maxTimeoutMillis);
+    }
+
+    /**
+     * Starts sending queued commands through the given client.
+     */
+    void attach(CommandClient commandClient) {
+        context.runOnContext(v -> {
+            // Bounds the time a command holds its slot of the window, the deadline of the command may be shorter
+            commandClient.setRequestTimeout(maxTimeoutMillis);
+            client = commandClient;
+            logger.info("Command client of tenant {} attached, {} commands queued", tenant, queued.size());
+            dispatch();
+        });
+    }
+
+    /**
+     * Stops sending commands until a new client is attached. Commands in flight are completed by the old client.
+     */
+    void detach() {
+        context.runOnContext(v -> client = null);
+    }
+
+    /**
+     * Fails all queued and in-flight commands and stops the dispatcher.
+     */
+    void close() {
+        context.runOnContext(v -> {
+            client = null;
+            failAll(queued, "Hono connection of tenant " + tenant + " was closed");
+            failAll(inFlight, "Hono connection of tenant " + tenant + " was closed");
+            updateCounts();
+        });
+    }
+
+    /**
+     * Queues a command with the default timeout. The action is called with the command client once the command may be
+     * sent.
+     */
+    <T> Future<T> submit(Function<CommandClient, Future<T>> action) {
+        return submit(action, 0);
+    }
+
+    /**
+     * Queues a command. The action is called with the command client once the command may be sent.
+     *
+     * @param commandTimeoutMillis Deadline of the command after submission, capped at {@code maxTimeoutMillis}, or 0
+     *                             for the default timeout.
+     */
+    <T> Future<T> submit(Function<CommandClient, Future<T>> action, long commandTimeoutMillis) {
+        long timeout = commandTimeoutMillis > 0 ? Math.min(commandTimeoutMillis, maxTimeoutMillis) : timeoutMillis;
+        PendingCommand<T> command = new PendingCommand<>(action, timeout, System.currentTimeMillis() + timeout);
+        context.runOnContext(v -> {
+            if (queued.size() >= queueCapacity) {
+                command.result.tryFail("Command queue of tenant " + tenant + " is full");
+                return;
+            }
+            queued.add(command);
+            command.timerId = context.owner().setTimer(Math.max(1, command.deadline - System.currentTimeMillis()), id -> expire(command));
+            dispatch();
+        });
+        return command.result;
+    }
+
+    int getQueuedCount() {
+        return queuedCount;
+    }
+
+    int getInFlightCount() {
+        return inFlightCount;
+    }
+
+    private void dispatch() {
+        Iterator<PendingCommand<?>> it = queued.iterator();
+        while (client != null && inFlight.size() < window && it.hasNext()) {
+            PendingCommand<?> command = it.next();
+            it.remove();
+            send(command, client);
+        }
+        updateCounts();
+    }
+
+    private <T> void send(PendingCommand<T> command, CommandClient commandClient) {
+        inFlight.add(command);
+        Future<T> response;
+        try {
+            response = command.action.apply(commandClient);
+        } catch (RuntimeException e) {
+            response = Future.failedFuture(e);
+        }
+        // The response may be completed on the context of the Hono connection
+        response.setHandler(result -> context.runOnContext(v -> complete(command, result)));
+    }
+
+    private <T> void complete(PendingCommand<T> command, AsyncResult<T> result) {
+        if (!inFlight.remove(command))
+            return;
+        command.cancelTimer(context.owner());
+        if (result.succeeded())
+            command.result.tryComplete(result.result());
+        else
+            command.result.tryFail(result.cause());
+        dispatch();
+    }
+
+    private void expire(PendingCommand<?> command) {
+        command.timerId = -1;
+        command.result.tryFail("Command to tenant " + tenant + " timed out after " + command.timeoutMillis + " ms");
+        // A command in flight keeps its slot until the request is completed by Hono
+        if (queued.remove(command))
+            updateCounts();
+    }
+
+    private void failAll(Iterable<PendingCommand<?>> commands, String reason) {
+        Iterator<PendingCommand<?>> it = commands.iterator();
+        while (it.hasNext()) {
+            PendingCommand<?> command = it.next();
+            command.cancelTimer(context.owner());
+            command.result.tryFail(reason);
+            it.remove();
+        }
+    }
+
+    private void updateCounts() {
+        queuedCount = queued.size();
+        inFlightCount = inFlight.size();
+    }
+
+    private static final class PendingCommand<T> {
+        final Function<CommandClient, Future<T>> action;
+        final long timeoutMillis;
+        final long deadline;
+        final Future<T> result = Future.future();
+        long timerId = -1;
+
+        PendingCommand(Function<CommandClient, Future<T>> action, long timeoutMillis, long deadline) {
+            this.action = action;
+            this.timeoutMillis = timeoutMillis;
+            this.deadline = deadline;
+        }
+
+        void cancelTimer(Vertx vertx) {
+            if (timerId != -1) {
+                vertx.cancelTimer(timerId);
+                timerId = -1;
+            }
+        }
+    }
+}
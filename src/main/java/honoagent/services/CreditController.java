@@ -0,0 +1,104 @@
+package honoagent.services;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import org.eclipse.hono.client.MessageConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntSupplier;
+
+/**
+ * Grants AMQP credit to a Hono consumer based on the free space in the processing pipeline.
+ * <p>
+ * At most {@code prefetch} credits are outstanding at any time. Once the pipeline depth reaches the high watermark no
+ * more credit is granted until it has dropped below the low watermark again, so a backlog on the Cumulocity side
+ * stops the flow of messages at the Hono messaging network instead of filling up the heap.
+ * <p>
+ * The consumer must have been created with an initial credit of 0 so that Proton does not replenish credit itself.
+ */
+class CreditController {
+
+    final Logger logger = LoggerFactory.getLogger(CreditController.class);
+
+    private static final long RECHECK_INTERVAL_MILLIS = 200;
+
+    private final String name;
+    private final IntSupplier pipelineDepth;
+    private final int prefetch;
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final AtomicBoolean replenishScheduled = new AtomicBoolean();
+
+    private MessageConsumer consumer;
+    private Context context;
+    private boolean paused;
+    private long timerId = -1;
+
+    CreditController(String name, IntSupplier pipelineDepth, int prefetch, int highWatermark, int lowWatermark) {
+        this.name = name;
+        this.pipelineDepth = pipelineDepth;
+        this.prefetch = prefetch;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = Math.min(lowWatermark, highWatermark);
+    }
+
+    /**
+     * Starts granting credit to the consumer. Must be called on the Vert.x context of the consumer's connection.
+     */
+    void attach(MessageConsumer consumer) {
+        this.consumer = consumer;
+        this.context = Vertx.currentContext();
+        if (timerId == -1) {
+            // Recheck regularly as the pipeline may drain without any message completing on this consumer
+            timerId = context.owner().setPeriodic(RECHECK_INTERVAL_MILLIS, id -> replenish());
+        }
+        replenish();
+    }
+
+    void detach() {
+        consumer = null;
+        if (timerId != -1 && context != null) {
+            context.owner().cancelTimer(timerId);
+            timerId = -1;
+        }
+    }
+
+    /**
+     * Signals that a message of this consumer left the pipeline. May be called from any thread.
+     */
+    void onMessageProcessed() {
+        Context ctx = context;
+        if (ctx != null && replenishScheduled.compareAndSet(false, true)) {
+            ctx.runOnContext(v -> {
+                replenishScheduled.set(false);
+                replenish();
+            });
+        }
+    }
+
+    private void replenish() {
+        MessageConsumer current = consumer;
+        if (current == null)
+            return;
+        int depth = pipelineDepth.getAsInt();
+        if (paused && depth <= lowWatermark) {
+            logger.info("Resuming {} consumer, pipeline depth {}", name, depth);
+            paused = false;
+        } else if (!paused && depth >= highWatermark) {
+            logger.info("Pausing {} consumer, pipeline depth {}", name, depth);
+            paused = true;
+        }
+        if (paused)
+            return;
+        int credit = Math.min(prefetch, highWatermark - depth) - current.getRemainingCredit();
+        if (credit > 0) {
+            try {
+                current.flow(credit);
+            } catch (IllegalStateException e) {
+                logger.debug("Cannot grant credit to closed {} consumer", name);
+            }
+        }
+    }
+}
@@ -18,7 +18,6 @@ import com.cumulocity.rest.representation.operation.OperationRepresentation;
 import com.cumulocity.rest.representation.tenant.OptionRepresentation;
 import com.cumulocity.sdk.client.SDKException;
 import com.cumulocity.sdk.client.devicecontrol.DeviceControlApi;
-import com.cumulocity.sdk.client.devicecontrol.OperationFilter;
 import com.cumulocity.sdk.client.event.EventApi;
 import com.cumulocity.sdk.client.identity.IdentityApi;
 import com.cumulocity.sdk.client.inventory.InventoryApi;
@@ -28,6 +27,7 @@ import com.cumulocity.sdk.client.notification.Subscription;
 import com.cumulocity.sdk.client.notification.SubscriptionListener;
 import com.cumulocity.sdk.client.option.TenantOptionApi;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.json.JsonObject;
@@ -41,9 +41,15 @@ import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 
 @Service
 public class CumulocityClient {
@@ -71,10 +77,31 @@ public class CumulocityClient {
     @Autowired
     MicroserviceSubscriptionsService subscriptionsService;
 
+    @Autowired
+    DeviceIdentityCache deviceCache;
+
+    @Autowired
+    LastSeenTracker lastSeenTracker;
+
+    @Autowired
+    BatchWriter batchWriter;
+
+    @Autowired
+    DeviceExecutor deviceExecutor;
+
+    @Autowired
+    AgentMetrics metrics;
+
+    @Autowired
+    DeviceOwnership deviceOwnership;
+
     private ManagedObjectRepresentation loggingDevice;
 
     private final String LOGGING_ID = "HONO_LOGGING";
-    private final String SERIAL_TYPE = "c8y_Serial";
+    static final String SERIAL_TYPE = "c8y_Serial";
+    static final String HONO_DEVICE_TYPE = "c8y_HonoDevice";
+    // Hono device id stored on the managed object, so that devices can be preloaded without identity lookups
+    static final String DEVICE_ID_FRAGMENT = "hono_DeviceId";
 
     @Value("${C8Y.agentName}")
     public String agentName;
@@ -82,58 +109,83 @@ public class CumulocityClient {
     @Value("${C8Y.agentId}")
     public String agentId;
 
-    private ManagedObjectRepresentation agentMor;
+    private final Map<String, ManagedObjectRepresentation> agentMors = new ConcurrentHashMap<>();
+
+    private final Map<String, Set<GId>> assignedDevices = new ConcurrentHashMap<>();
+
+    private static final int PAGE_SIZE = 2000;
 
     final Logger logger = LoggerFactory.getLogger(CumulocityClient.class);
 
+    /**
+     * Returns the external id, or {@code null} if it does not exist. Any other error is thrown, so that an unavailable
+     * platform is not taken for a missing device.
+     */
     public ExternalIDRepresentation findExternalId(String externalId, String type) {
         ID id = new ID();
         id.setType(type);
         id.setValue(externalId);
-        ExternalIDRepresentation extId = null;
         try {
-            extId = identityApi.getExternalId(id);
+            return metrics.rest("identity.get", () -> identityApi.getExternalId(id));
         } catch (SDKException e) {
+            if (e.getHttpStatus() != 404)
+                throw e;
             logger.info("External ID {} not found", externalId);
+            return null;
         }
-        return extId;
     }
 
-    public ManagedObjectRepresentation upsertHonoDevice(String name, String id, String data, DateTime updateTime) {
-
+    public ManagedObjectRepresentation upsertHonoDevice(String name, String id, DateTime updateTime) {
+        String tenant = subscriptionsService.getTenant();
         try {
-            logger.info("Upsert device with name {} and id {} with Data {}", name, id, data);
-            ExternalIDRepresentation extId = findExternalId(id, SERIAL_TYPE);
-            ManagedObjectRepresentation mor;
-            boolean deviceExists = true;
-            if (extId == null) {
-                mor = new ManagedObjectRepresentation();
-                mor.setType("c8y_HonoDevice");
-                mor.setName(name);
-                deviceExists = false;
-            } else {
-                mor = extId.getManagedObject();
-            }
-            mor.set(new IsDevice());
-
-            mor.set(DateTimeConverter.date2String(updateTime), "lastHonoUpdate");
-            if (!deviceExists) {
-                mor = inventoryApi.create(mor);
-                extId = new ExternalIDRepresentation();
-                extId.setExternalId(id);
-                extId.setType(SERIAL_TYPE);
-                extId.setManagedObject(mor);
-                identityApi.create(extId);
-            } else
-                mor = inventoryApi.update(mor);
+            logger.debug("Upsert device with name {} and id {}", name, id);
+            final ManagedObjectRepresentation[] created = new ManagedObjectRepresentation[1];
+            GId gid = deviceCache.getOrLoad(tenant, id, deviceId -> {
+                ExternalIDRepresentation extId = findExternalId(deviceId, SERIAL_TYPE);
+                if (extId != null)
+                    return extId.getManagedObject().getId();
+                created[0] = createHonoDevice(name, deviceId, updateTime);
+                return created[0].getId();
+            });
+            if (gid == null)
+                return null;
+            if (created[0] != null)
+                return created[0];
+
+            lastSeenTracker.record(tenant, gid, updateTime);
+            ManagedObjectRepresentation mor = new ManagedObjectRepresentation();
+            mor.setId(gid);
             return mor;
         } catch (SDKException e) {
+            if (e.getHttpStatus() == 404) {
+                // Managed object was deleted in the meantime, resolve it again on the next message
+                deviceCache.invalidate(tenant, id);
+            } else if (!SpoolService.isRetryable(e)) {
+                // Creation was rejected, e.g. for missing permissions, it is retried after the negative TTL
+                deviceCache.markMissing(tenant, id);
+            }
             logger.info("Error on creating DT Device", e);
             return null;
         }
 
     }
 
+    private ManagedObjectRepresentation createHonoDevice(String name, String id, DateTime updateTime) {
+        ManagedObjectRepresentation mor = new ManagedObjectRepresentation();
+        mor.setType(HONO_DEVICE_TYPE);
+        mor.setName(name);
+        mor.set(new IsDevice());
+        mor.set(id, DEVICE_ID_FRAGMENT);
+        mor.set(DateTimeConverter.date2String(updateTime), "lastHonoUpdate");
+        ManagedObjectRepresentation device = metrics.rest("inventory.create", () -> inventoryApi.create(mor));
+        ExternalIDRepresentation extId = new ExternalIDRepresentation();
+        extId.setExternalId(id);
+        extId.setType(SERIAL_TYPE);
+        extId.setManagedObject(device);
+        metrics.rest("identity.create", () -> identityApi.create(extId));
+        return device;
+    }
+
     public void createTemperatureMeasurement(ManagedObjectRepresentation mor, Double temperature, DateTime dateTime) {
         try {
             MeasurementRepresentation measurementRepresentation = new MeasurementRepresentation();
@@ -143,7 +195,7 @@ public class CumulocityClient {
             measurementRepresentation.setSource(mor);
             measurementRepresentation.setDateTime(dateTime);
             measurementRepresentation.setType("c8y_TemperatureMeasurement");
-            measurementApi.create(measurementRepresentation);
+            submitMeasurement(measurementRepresentation, "Error on creating Temperature Measurement");
         } catch (SDKException e) {
             logger.error("Error on creating Temperature Measurement", e);
         }
@@ -158,7 +210,7 @@ public class CumulocityClient {
             measurementRepresentation.setSource(mor);
             measurementRepresentation.setDateTime(dateTime);
             measurementRepresentation.setType("c8y_BatteryMeasurement");
-            measurementApi.create(measurementRepresentation);
+            submitMeasurement(measurementRepresentation, "Error on creating Temperature Measurement");
         } catch (SDKException e) {
             logger.error("Error on creating Temperature Measurement", e);
         }
@@ -173,7 +225,7 @@ public class CumulocityClient {
             measurementRepresentation.setSource(mor);
             measurementRepresentation.setDateTime(dataTime);
             measurementRepresentation.setType("c8y_SignalStrengthMeasurement");
-            measurementApi.create(measurementRepresentation);
+            submitMeasurement(measurementRepresentation, "Error on creating Signal Strength Measurement");
         } catch (SDKException e) {
             logger.error("Error on creating Signal Strength Measurement", e);
         }
@@ -181,7 +233,7 @@ public class CumulocityClient {
 
     public List<ManagedObjectReferenceRepresentation> getParentDevicesByDeviceId(ManagedObjectRepresentation mor) {
         try {
-            List<ManagedObjectReferenceRepresentation> referenceRepresentations = inventoryApi.get(mor.getId()).getDeviceParents().getReferences();
+            List<ManagedObjectReferenceRepresentation> referenceRepresentations = metrics.rest("inventory.get", () -> inventoryApi.get(mor.getId())).getDeviceParents().getReferences();
             return referenceRepresentations;
         } catch (SDKException e) {
             logger.error("Error receiving References for Device {}", mor.getId());
@@ -189,6 +241,20 @@ public class CumulocityClient {
         }
     }
 
+    /**
+     * Returns the tenant options of the category, or an empty list if the category does not exist. Unlike
+     * {@link #getTenantOptions(String)} any other error is thrown, so that callers can tell it from missing options.
+     */
+    public List<OptionRepresentation> loadTenantOptions(String category) {
+        try {
+            return metrics.rest("option.list", () -> tenantOptionApi.getAllOptionsForCategory(category));
+        } catch (SDKException e) {
+            if (e.getHttpStatus() == 404)
+                return new ArrayList<>();
+            throw e;
+        }
+    }
+
     public List<OptionRepresentation> getTenantOptions(String category) {
         List<OptionRepresentation> optionList = new ArrayList<>();
         try {
@@ -208,24 +274,81 @@ public class CumulocityClient {
         }
     }
 
-    public EventRepresentation createEvent(ManagedObjectRepresentation mor, String eventType, String eventText, String content, JsonObject jsonContent, DateTime dateTime) {
-        EventRepresentation event = null;
-        try {
-            EventRepresentation eventRepresentation = new EventRepresentation();
-            eventRepresentation.setSource(mor);
-            eventRepresentation.setDateTime(dateTime);
-            eventRepresentation.setText(eventText);
-            if (jsonContent != null) {
-                eventRepresentation.set(jsonContent.getMap(), "hono_Content");
-            } else {
-                eventRepresentation.set(content, "hono_Content");
-            }
-            eventRepresentation.setType(eventType);
-            eventRepresentation = eventApi.create(eventRepresentation);
-            return eventRepresentation;
-        } catch (SDKException e) {
-            logger.error("Error on creating Event", e);
-            return event;
+    /**
+     * Queues the event for the {@link BatchWriter} instead of creating it synchronously.
+     */
+    public CompletableFuture<EventRepresentation> createEventAsync(ManagedObjectRepresentation mor, String eventType, String eventText, String content, JsonObject jsonContent, DateTime dateTime) {
+        return submitEvent(newEvent(mor, eventType, eventText, content, jsonContent, dateTime));
+    }
+
+    /**
+     * Queues an event with the JSON object as {@code hono_Content}. The JSON is written into the request body as is
+     * instead of being converted into a map and serialized again, so it must be a valid JSON object. See
+     * {@link RawJson} for the copies that remain.
+     */
+    public CompletableFuture<EventRepresentation> createRawEventAsync(ManagedObjectRepresentation mor, String eventType, String eventText, String json, DateTime dateTime) {
+        return submitEvent(newEvent(mor, eventType, eventText, new RawJson(json), dateTime));
+    }
+
+    private CompletableFuture<EventRepresentation> submitEvent(EventRepresentation event) {
+        String tenant = subscriptionsService.getTenant();
+        return batchWriter.submitEvent(event).whenComplete((created, e) -> {
+            if (e != null)
+                writeFailed(tenant, "Error on creating Event", event.getSource(), e);
+        });
+    }
+
+    private EventRepresentation newEvent(ManagedObjectRepresentation mor, String eventType, String eventText, String content, JsonObject jsonContent, DateTime dateTime) {
+        return newEvent(mor, eventType, eventText, jsonContent != null ? jsonContent.getMap() : content, dateTime);
+    }
+
+    private EventRepresentation newEvent(ManagedObjectRepresentation mor, String eventType, String eventText, Object content, DateTime dateTime) {
+        EventRepresentation eventRepresentation = new EventRepresentation();
+        eventRepresentation.setSource(mor);
+        eventRepresentation.setDateTime(dateTime);
+        eventRepresentation.setText(eventText);
+        eventRepresentation.set(content, "hono_Content");
+        eventRepresentation.setType(eventType);
+        return eventRepresentation;
+    }
+
+    /**
+     * Queues the measurement for the {@link BatchWriter} instead of creating it synchronously.
+     */
+    public CompletableFuture<MeasurementRepresentation> createMeasurementAsync(MeasurementRepresentation measurement) {
+        String tenant = subscriptionsService.getTenant();
+        return batchWriter.submitMeasurement(measurement).whenComplete((created, e) -> {
+            if (e != null)
+                writeFailed(tenant, "Error on creating Measurement", measurement.getSource(), e);
+        });
+    }
+
+    private void submitMeasurement(MeasurementRepresentation measurement, String errorMessage) {
+        String tenant = subscriptionsService.getTenant();
+        batchWriter.submitMeasurement(measurement).whenComplete((created, e) -> {
+            if (e != null)
+                writeFailed(tenant, errorMessage, measurement.getSource(), e);
+        });
+    }
+
+    /**
+     * Logs a failed write and evicts the cached GId of the source if its managed object does not exist anymore, so the
+     * device is resolved again with the next message instead of after the cache TTL. Writes rejected by the full
+     * {@link BatchWriter} are only counted there.
+     */
+    private void writeFailed(String tenant, String message, ManagedObjectRepresentation source, Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof RejectedExecutionException) {
+            logger.debug("{}: {}", message, cause.getMessage());
+            return;
+        }
+        logger.error(message, cause);
+        if (source == null || source.getId() == null || !(cause instanceof SDKException))
+            return;
+        int status = ((SDKException) cause).getHttpStatus();
+        if (status == 404 || status == 422) {
+            logger.info("Source {} of a failed write does not exist, resolving it again", source.getId().getValue());
+            deviceCache.invalidate(tenant, source.getId());
         }
     }
 
@@ -239,10 +362,18 @@ public class CumulocityClient {
             extId = createAgent(agentName, agentId);
             logger.info("Agent Object has been created with id {}", extId.getManagedObject().getId().getLong());
         }
-        agentMor = extId.getManagedObject();
+        agentMors.put(subscriptionsService.getTenant(), extId.getManagedObject());
         return extId.getManagedObject();
     }
 
+    /**
+     * Returns the agent of the current tenant, looking it up or creating it on first use.
+     */
+    public ManagedObjectRepresentation getAgentMor() {
+        ManagedObjectRepresentation agentMor = agentMors.get(subscriptionsService.getTenant());
+        return agentMor != null ? agentMor : findAgentMor();
+    }
+
     private ExternalIDRepresentation createAgent(String name, String id) {
         logger.info("Creating new Agent with name {} and id {}", name, id);
         ManagedObjectRepresentation mor = new ManagedObjectRepresentation();
@@ -258,28 +389,39 @@ public class CumulocityClient {
         return externalIDRepresentation;
     }
 
-    public void processFirstPendingOperation(ManagedObjectRepresentation agentMor) {
-        OperationFilter filter = new OperationFilter();
-        filter = filter.byAgent(agentMor.getId().getValue());
-        filter = filter.byStatus(OperationStatus.PENDING);
-        Iterator<OperationRepresentation> opIt = deviceControlApi.getOperationsByFilter(filter).get().allPages().iterator();
-        while (opIt.hasNext()) {
-            OperationRepresentation op = opIt.next();
-            op.setStatus(OperationStatus.EXECUTING.toString());
-            deviceControlApi.update(op);
-            processOperations(op);
+    /**
+     * Replaces the devices known to be assigned to the agent with the child devices of the agent in the inventory.
+     */
+    public void loadAgentChildDevices(ManagedObjectRepresentation agentMor) {
+        Set<GId> children = getAssignedDevices();
+        try {
+            Set<GId> loaded = new HashSet<>();
+            for (ManagedObjectReferenceRepresentation reference : inventoryApi.getManagedObjectApi(agentMor.getId()).getChildDevices().get(PAGE_SIZE).allPages()) {
+                loaded.add(reference.getManagedObject().getId());
+            }
+            // Assignments loaded from a snapshot may be outdated, devices assigned in the meantime are checked again
+            children.addAll(loaded);
+            children.retainAll(loaded);
+            logger.info("Loaded {} child devices of Agent {}", loaded.size(), agentMor.getId().getValue());
+        } catch (SDKException e) {
+            logger.error("Error loading child devices of Agent {}", agentMor.getId().getValue(), e);
         }
     }
 
     public void checkAgentAssignment(ManagedObjectRepresentation mor) {
+        Set<GId> children = getAssignedDevices();
+        if (mor == null || children.contains(mor.getId()))
+            return;
+
+        ManagedObjectRepresentation agent = getAgentMor();
         boolean agentAssigned = false;
         try {
             List<ManagedObjectReferenceRepresentation> referencesList = getParentDevicesByDeviceId(mor);
             for (ManagedObjectReferenceRepresentation reference : referencesList) {
                 ManagedObjectRepresentation parentMor = reference.getManagedObject();
-                if (agentName.equals(parentMor.getName())) {
+                if (agent.getId().equals(parentMor.getId()) || agentName.equals(parentMor.getName())) {
                     agentAssigned = true;
-                    continue;
+                    break;
                 }
             }
         } catch (Exception e) {
@@ -288,93 +430,149 @@ public class CumulocityClient {
 
         // Assign Agent
         if (!agentAssigned) {
-            ManagedObjectRepresentation agentMor = findAgentMor();
-            assignDeviceToAgent(mor, agentMor);
+            assignDeviceToAgent(mor, agent);
         }
+        children.add(mor.getId());
+    }
+
+    private Set<GId> getAssignedDevices() {
+        return getAssignedDevices(subscriptionsService.getTenant());
+    }
+
+    Set<GId> getAssignedDevices(String tenant) {
+        return assignedDevices.computeIfAbsent(tenant, t -> ConcurrentHashMap.newKeySet());
     }
 
     public void assignDeviceToAgent(ManagedObjectRepresentation deviceMor, ManagedObjectRepresentation agentMor) {
         ManagedObjectReferenceRepresentation child2Ref = new ManagedObjectReferenceRepresentation();
         child2Ref.setManagedObject(deviceMor);
-        inventoryApi.getManagedObjectApi(agentMor.getId()).addChildDevice(child2Ref);
+        metrics.rest("inventory.addChildDevice", () -> {
+            inventoryApi.getManagedObjectApi(agentMor.getId()).addChildDevice(child2Ref);
+            return null;
+        });
     }
 
     public void registerForOperations(GId agentId) {
         Subscriber<GId, OperationRepresentation> subscriber = deviceControlApi.getNotificationsSubscriber();
-        OperationListener<GId, OperationRepresentation> operationListener = new OperationListener<>();
+        OperationListener<GId, OperationRepresentation> operationListener = new OperationListener<>(subscriptionsService.getTenant());
         subscriber.subscribe(agentId, operationListener);
     }
 
     public void processOperations(OperationRepresentation op) {
+        if (!isOwnOperation(op)) {
+            logger.debug("Operation {} of Device {} is handled by another replica", op.getId().getValue(), op.getDeviceName());
+            return;
+        }
+        executeOperation(op, true);
+    }
+
+    /**
+     * Returns true if the operation targets a device owned by this replica, see {@link DeviceOwnership}.
+     */
+    boolean isOwnOperation(OperationRepresentation op) {
+        return deviceOwnership.isOwner(subscriptionsService.getTenant(), op.getDeviceName());
+    }
+
+    /**
+     * Sends the command of an operation to Hono and writes the final status of the operation.
+     * <p>
+     * Status updates only contain the id, the status and the failure reason. Without {@code reportExecuting} the
+     * operation goes from PENDING to its final status with a single update.
+     *
+     * @return completes once the final status has been written
+     */
+    CompletableFuture<Void> executeOperation(OperationRepresentation op, boolean reportExecuting) {
         logger.info("Operation received {}", op.toString());
-        op.setStatus(OperationStatus.EXECUTING.toString());
-        deviceControlApi.update(op);
+        final String tenant = subscriptionsService.getTenant();
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        if (!op.hasProperty("hono_Command")) {
+            updateOperation(op, OperationStatus.FAILED, "hono_Command was missing in the Operation!");
+            done.complete(null);
+            return done;
+        }
+        if (reportExecuting)
+            updateOperation(op, OperationStatus.EXECUTING, null);
+
         boolean oneWay = true;
-        String honoCommand = null;
+        String honoCommand = op.get("hono_Command").toString();
         String honoContentType = null;
         Buffer honoData = null;
         Map<String, Object> honoHeaders = null;
-        if (!op.hasProperty("hono_Command")) {
-            op.setFailureReason("hono_Command was missing in the Operation!");
-            op.setStatus(OperationStatus.FAILED.toString());
-            deviceControlApi.update(op);
-        } else {
-            honoCommand = op.get("hono_Command").toString();
-            if(op.hasProperty("hono_OneWay"))
-                oneWay = (boolean) op.get("hono_OneWay");
-            if (op.hasProperty("hono_Data")) {
-                honoData = Buffer.buffer(op.get("hono_Data").toString());
-            }
-            if (op.hasProperty("hono_Headers")) {
-                ObjectMapper m = new ObjectMapper();
-                honoHeaders = m.convertValue(op.get("hono_Headers"), Map.class);
+        if(op.hasProperty("hono_OneWay"))
+            oneWay = (boolean) op.get("hono_OneWay");
+        if (op.hasProperty("hono_Data")) {
+            honoData = Buffer.buffer(op.get("hono_Data").toString());
+        }
+        if (op.hasProperty("hono_Headers")) {
+            ObjectMapper m = new ObjectMapper();
+            honoHeaders = m.convertValue(op.get("hono_Headers"), Map.class);
+        }
+        if (op.hasProperty("hono_ContentType"))
+            honoContentType = op.get("hono_ContentType").toString();
+        long honoTimeout = 0;
+        if (op.hasProperty("hono_Timeout")) {
+            try {
+                honoTimeout = new BigDecimal(op.get("hono_Timeout").toString()).longValueExact();
+            } catch (ArithmeticException | NumberFormatException e) {
+                updateOperation(op, OperationStatus.FAILED, "hono_Timeout must be a number of milliseconds!");
+                done.complete(null);
+                return done;
             }
-            if (op.hasProperty("hono_ContentType"))
-                honoContentType = op.get("hono_ContentType").toString();
-
-
-            if(oneWay) {
-                Future<Void> commandResult = honoAgent.sendOneWayCommand(op.getDeviceName(), honoContentType, honoCommand, honoData, honoHeaders);
-                commandResult.setHandler(result -> {
-                    subscriptionsService.runForEachTenant(() -> {
-                        if (result.succeeded()) {
-                            logger.info("Command successfully send");
-                            op.setStatus(OperationStatus.SUCCESSFUL.toString());
-                            deviceControlApi.update(op);
-                        } else {
-                            logger.error("Command not successfully send: {}", result.cause().getMessage());
-                            op.setStatus(OperationStatus.FAILED.toString());
-                            op.setFailureReason(result.cause().getMessage());
-                            deviceControlApi.update(op);
-                        }
-                    });
-                });
-            } else {
-                Future<BufferResult> commandResult = honoAgent.sendCommand(op.getDeviceName(), honoContentType, honoCommand, honoData, honoHeaders);
-                commandResult.setHandler(result -> {
-                    subscriptionsService.runForEachTenant(() -> {
-                        if (result.succeeded()) {
-                            logger.info("Command was successful {}", result.result().toString());
-                            op.setStatus(OperationStatus.SUCCESSFUL.toString());
-                            deviceControlApi.update(op);
-                        } else {
-                            logger.error("Command was not successful: {}", result.cause().getMessage());
-                            op.setStatus(OperationStatus.FAILED.toString());
-                            op.setFailureReason(result.cause().getMessage());
-                            deviceControlApi.update(op);
-                        }
-                    });
+        }
+
+        if(oneWay) {
+            Future<Void> commandResult = honoAgent.sendOneWayCommand(tenant, op.getDeviceName(), honoContentType, honoCommand, honoData, honoHeaders, honoTimeout);
+            commandResult.setHandler(result -> completeOperation(tenant, op, result, "Command successfully send", done));
+        } else {
+            Future<BufferResult> commandResult = honoAgent.sendCommand(tenant, op.getDeviceName(), honoContentType, honoCommand, honoData, honoHeaders, honoTimeout);
+            commandResult.setHandler(result -> completeOperation(tenant, op, result, "Command was successful", done));
+        }
+        return done;
+    }
+
+    private void completeOperation(String tenant, OperationRepresentation op, AsyncResult<?> result, String successMessage, CompletableFuture<Void> done) {
+        deviceExecutor.execute(tenant, op.getDeviceId().getValue(), () -> {
+            try {
+                subscriptionsService.runForTenant(tenant, () -> {
+                    if (result.succeeded()) {
+                        logger.info("{} {}", successMessage, result.result() != null ? result.result().toString() : "");
+                        updateOperation(op, OperationStatus.SUCCESSFUL, null);
+                    } else {
+                        logger.error("Command was not successful: {}", result.cause().getMessage());
+                        updateOperation(op, OperationStatus.FAILED, result.cause().getMessage());
+                    }
                 });
+            } finally {
+                done.complete(null);
             }
+        });
+    }
+
+    private void updateOperation(OperationRepresentation op, OperationStatus status, String failureReason) {
+        OperationRepresentation update = new OperationRepresentation();
+        update.setId(op.getId());
+        update.setStatus(status.toString());
+        if (failureReason != null)
+            update.setFailureReason(failureReason);
+        try {
+            metrics.rest("operation.update", () -> deviceControlApi.update(update));
+        } catch (SDKException e) {
+            logger.error("Error on updating Operation {} to {}", op.getId().getValue(), status, e);
         }
     }
 
     public class OperationListener<GId, OperationRepresentation>
             implements SubscriptionListener<GId, OperationRepresentation> {
 
+        private final String tenant;
+
+        public OperationListener(String tenant) {
+            this.tenant = tenant;
+        }
+
         @Override
         public void onNotification(Subscription<GId> sub, OperationRepresentation operation) {
-            subscriptionsService.runForEachTenant(() -> {
+            subscriptionsService.runForTenant(tenant, () -> {
                 com.cumulocity.rest.representation.operation.OperationRepresentation op = (com.cumulocity.rest.representation.operation.OperationRepresentation) operation;
                 processOperations(op);
             });
@@ -0,0 +1,257 @@
+package honoagent.services;
+
+import io.netty.buffer.Unpooled;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonObject;
+import org.apache.qpid.proton.amqp.Binary;
+import org.apache.qpid.proton.amqp.messaging.AmqpValue;
+import org.apache.qpid.proton.amqp.messaging.Data;
+import org.apache.qpid.proton.amqp.messaging.Section;
+import org.apache.qpid.proton.message.Message;
+import org.eclipse.hono.util.MessageHelper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Read-only view of a message received from Hono that decodes the payload at most once and only when needed.
+ * <p>
+ * The device id, the content type and a reference to the payload bytes are read when the view is created. The JSON
+ * object and the string form of the payload are created on first access and cached. JSON is parsed directly from the
+ * bytes of the AMQP body, payloads with a binary content type are never parsed as JSON. If a {@link PayloadDecoder}
+ * is registered for the content type, it is selected once and {@link #getJson()} returns its result instead. Payloads
+ * that are only stored as event content are checked with {@link #isJsonObject()} instead of being parsed. Payloads
+ * without a decoder that are not text, by their content type or because they are not valid UTF-8, are passed through
+ * as {@code {"base64": "..."}} by {@link #getBase64Json()} instead of being stored as a lossy string.
+ */
+final class DecodedMessage {
+
+    private final Message msg;
+    private final String deviceId;
+    private final String contentType;
+    private final Binary body;
+    private final String textBody;
+    private final PayloadDecoder decoder;
+
+    private String payloadString;
+    private JsonObject json;
+    private boolean jsonDecoded;
+    private Boolean jsonObject;
+    private Boolean text;
+
+    private DecodedMessage(Message msg, PayloadDecoders decoders) {
+        this.msg = msg;
+        this.deviceId = MessageHelper.getDeviceId(msg);
+        this.contentType = msg.getContentType();
+        Section section = msg.getBody();
+        Object value = section instanceof AmqpValue ? ((AmqpValue) section).getValue() : null;
+        this.body = section instanceof Data ? ((Data) section).getValue() : value instanceof Binary ? (Binary) value : null;
+        this.textBody = value instanceof String ? (String) value : null;
+        this.decoder = decoders != null ? decoders.forContentType(contentType) : null;
+    }
+
+    static DecodedMessage of(Message msg) {
+        return new DecodedMessage(msg, null);
+    }
+
+    static DecodedMessage of(Message msg, PayloadDecoders decoders) {
+        return new DecodedMessage(msg, decoders);
+    }
+
+    String getDeviceId() {
+        return deviceId;
+    }
+
+    String getContentType() {
+        return contentType;
+    }
+
+    <T> T getApplicationProperty(String name, Class<T> type) {
+        return MessageHelper.getApplicationProperty(msg.getApplicationProperties(), name, type);
+    }
+
+    Object getMessageId() {
+        return msg.getMessageId();
+    }
+
+    /**
+     * Returns the creation time in epoch millis, or 0 if it is not set.
+     */
+    long getCreationTime() {
+        return msg.getCreationTime();
+    }
+
+    /**
+     * Returns a 64-bit FNV-1a hash of the payload bytes without decoding them.
+     */
+    long getPayloadHash() {
+        long hash = 0xcbf29ce484222325L;
+        if (body != null) {
+            byte[] bytes = body.getArray();
+            for (int i = body.getArrayOffset(), end = i + body.getLength(); i < end; i++) {
+                hash = (hash ^ (bytes[i] & 0xff)) * 0x100000001b3L;
+            }
+        } else if (textBody != null) {
+            for (int i = 0; i < textBody.length(); i++) {
+                hash = (hash ^ textBody.charAt(i)) * 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    int getPayloadSize() {
+        return body != null ? body.getLength() : textBody != null ? textBody.length() : 0;
+    }
+
+    /**
+     * Returns the payload decoded as UTF-8, or {@code null} if the message has no payload. Invalid UTF-8 sequences are
+     * replaced, so binary payloads are only decoded this way for logging, see {@link #isText()}.
+     */
+    String getPayloadAsString() {
+        if (payloadString == null) {
+            if (textBody != null)
+                payloadString = textBody;
+            else if (body != null)
+                payloadString = new String(body.getArray(), body.getArrayOffset(), body.getLength(), StandardCharsets.UTF_8);
+        }
+        return payloadString;
+    }
+
+    /**
+     * Returns true if the payload can be stored as a string without loss. Payloads with a binary content type (images,
+     * audio, video, CBOR, Protobuf) are never text, payloads of other or missing content types are text if they are
+     * valid UTF-8. The decoded string is kept for {@link #getPayloadAsString()}.
+     */
+    boolean isText() {
+        if (text == null) {
+            if (textBody != null || body == null) {
+                text = true;
+            } else if (isBinaryType()) {
+                text = false;
+            } else {
+                try {
+                    payloadString = StandardCharsets.UTF_8.newDecoder()
+                            .onMalformedInput(CodingErrorAction.REPORT)
+                            .onUnmappableCharacter(CodingErrorAction.REPORT)
+                            .decode(ByteBuffer.wrap(body.getArray(), body.getArrayOffset(), body.getLength()))
+                            .toString();
+                    text = true;
+                } catch (CharacterCodingException e) {
+                    text = false;
+                }
+            }
+        }
+        return text;
+    }
+
+    /**
+     * Returns the payload bytes as {@code {"base64": "..."}}, for payloads that are not {@link #isText() text}.
+     */
+    JsonObject getBase64Json() {
+        if (body != null)
+            return Base64PayloadDecoder.encode(body.getArray(), body.getArrayOffset(), body.getLength());
+        byte[] bytes = textBody != null ? textBody.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        return Base64PayloadDecoder.encode(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Returns true if the payload is decoded by a {@link PayloadDecoder} instead of being parsed as JSON.
+     */
+    boolean hasDecoder() {
+        return decoder != null;
+    }
+
+    /**
+     * Returns the payload as JSON object, or {@code null} if the payload is not a JSON object or could not be decoded.
+     */
+    JsonObject getJson() {
+        if (!jsonDecoded) {
+            jsonDecoded = true;
+            if (decoder != null) {
+                json = decode();
+            } else if (mayBeJson()) {
+                try {
+                    json = textBody != null ? new JsonObject(textBody) : new JsonObject(payloadBuffer());
+                } catch (DecodeException | ClassCastException e) {
+                    json = null;
+                }
+            }
+        }
+        return json;
+    }
+
+    /**
+     * Returns true if the payload is a JSON object. Unless the payload was already parsed, the syntax is only checked
+     * so that the payload can be passed through as {@link RawJson}. Payloads with a decoder are never JSON text.
+     */
+    boolean isJsonObject() {
+        if (jsonObject == null) {
+            if (decoder != null)
+                jsonObject = false;
+            else if (jsonDecoded)
+                jsonObject = json != null;
+            else if (!mayBeJson())
+                jsonObject = false;
+            else
+                jsonObject = textBody != null ? RawJson.isObject(textBody) : RawJson.isObject(body.getArray(), body.getArrayOffset(), body.getLength());
+        }
+        return jsonObject;
+    }
+
+    private JsonObject decode() {
+        try {
+            if (body != null)
+                return decoder.decode(body.getArray(), body.getArrayOffset(), body.getLength(), contentType);
+            if (textBody != null) {
+                byte[] bytes = textBody.getBytes(StandardCharsets.UTF_8);
+                return decoder.decode(bytes, 0, bytes.length, contentType);
+            }
+        } catch (IOException | RuntimeException e) {
+            // Undecodable payloads are handled like payloads that are not JSON
+        }
+        return null;
+    }
+
+    private Buffer payloadBuffer() {
+        // Wraps the bytes of the AMQP body without copying them
+        return Buffer.buffer(Unpooled.wrappedBuffer(body.getArray(), body.getArrayOffset(), body.getLength()));
+    }
+
+    private boolean mayBeJson() {
+        if (contentType != null) {
+            if (contentType.startsWith("application/json") || contentType.contains("+json"))
+                return true;
+            if (isBinaryType())
+                return false;
+        }
+        // Unknown or missing content type, only try payloads that look like a JSON object. This includes
+        // application/octet-stream, which Hono sets for MQTT messages without a content type.
+        if (textBody != null)
+            return firstNonWhitespace(textBody) == '{';
+        if (body == null)
+            return false;
+        byte[] bytes = body.getArray();
+        for (int i = body.getArrayOffset(), end = i + body.getLength(); i < end; i++) {
+            if (!Character.isWhitespace(bytes[i]))
+                return bytes[i] == '{';
+        }
+        return false;
+    }
+
+    private boolean isBinaryType() {
+        return contentType != null && (contentType.startsWith("image/") || contentType.startsWith("audio/")
+                || contentType.startsWith("video/") || contentType.contains("cbor") || contentType.contains("protobuf"));
+    }
+
+    private static char firstNonWhitespace(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (!Character.isWhitespace(text.charAt(i)))
+                return text.charAt(i);
+        }
+        return 0;
+    }
+}
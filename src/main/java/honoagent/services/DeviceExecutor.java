@@ -0,0 +1,194 @@
+package honoagent.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executes blocking work off the Vert.x event loop while keeping the order of tasks per device.
+ * <p>
+ * Every tenant has its own stripes, tasks are assigned to one of them by the hash of their key. Each stripe runs its
+ * tasks one after another, different stripes run in parallel on the backing pool. The stripes of one tenant occupy at
+ * most {@code hono.executor.tenantShare} of the threads, so a tenant with a slow platform cannot delay the tasks of the
+ * other tenants. The backing pool is either a fixed thread pool or, with {@code hono.executor.mode=virtual} on a JDK
+ * that supports it, a virtual thread per task executor, the share then applies to the stripes of a tenant. Once the
+ * backing pool is shut down, tasks run on the submitting thread.
+ */
+@Component
+public class DeviceExecutor {
+
+    final Logger logger = LoggerFactory.getLogger(DeviceExecutor.class);
+
+    private static final int MAX_TASKS_PER_RUN = 64;
+
+    @Autowired
+    AgentMetrics metrics;
+
+    @Value("${hono.executor.mode:fixed}")
+    private String mode;
+
+    @Value("${hono.executor.threads:0}")
+    private int threads;
+
+    @Value("${hono.executor.stripes:256}")
+    private int stripes;
+
+    @Value("${hono.executor.tenantShare:0.5}")
+    private double tenantShare;
+
+    private ExecutorService backend;
+    private int maxRunningPerTenant;
+    private final ConcurrentMap<String, Stripe[]> tenantLanes = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+
+    @PostConstruct
+    public void start() {
+        if ("virtual".equalsIgnoreCase(mode)) {
+            backend = newVirtualThreadExecutor();
+            if (backend == null)
+                logger.warn("Virtual threads are not supported by this JVM, falling back to a fixed thread pool");
+        }
+        if (backend == null) {
+            int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors() * 2;
+            AtomicInteger threadCount = new AtomicInteger();
+            backend = Executors.newFixedThreadPool(poolSize, runnable -> {
+                Thread thread = new Thread(runnable, "device-worker-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            maxRunningPerTenant = (int) Math.ceil(poolSize * tenantShare);
+            logger.info("Device executor started with {} threads, {} stripes and {} threads per tenant", poolSize, stripes, maxRunningPerTenant);
+        } else {
+            maxRunningPerTenant = (int) Math.ceil(stripes * tenantShare);
+            logger.info("Device executor started with virtual threads, {} stripes and {} running stripes per tenant", stripes, maxRunningPerTenant);
+        }
+        metrics.gauge("hono.agent.executor.pending", pending, AtomicInteger::get);
+    }
+
+    /**
+     * Runs the task after all previously submitted tasks of the tenant with the same key have finished.
+     */
+    public void execute(String tenant, String key, Runnable task) {
+        pending.incrementAndGet();
+        Stripe[] lanes = tenantLanes.computeIfAbsent(tenant, t -> newLanes());
+        int hash = key != null ? key.hashCode() : 0;
+        lanes[Math.floorMod(hash ^ (hash >>> 16), lanes.length)].add(task);
+    }
+
+    /**
+     * Number of submitted tasks that have not finished yet.
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        backend.shutdown();
+        try {
+            if (!backend.awaitTermination(10, TimeUnit.SECONDS))
+                logger.warn("Device executor did not finish in time, {} tasks are lost", pending.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The share only applies while more than one tenant uses the executor, a single tenant may use all threads.
+     */
+    private int getMaxRunningPerTenant() {
+        return tenantLanes.size() > 1 ? maxRunningPerTenant : Integer.MAX_VALUE;
+    }
+
+    private Stripe[] newLanes() {
+        TenantShare<Stripe> share = new TenantShare<>(backend, this::getMaxRunningPerTenant);
+        Stripe[] lanes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            lanes[i] = new Stripe(share);
+        }
+        return lanes;
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private final class Stripe implements Runnable {
+        private final TenantShare<Stripe> share;
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        private boolean scheduled;
+
+        Stripe(TenantShare<Stripe> share) {
+            this.share = share;
+        }
+
+        void add(Runnable task) {
+            synchronized (this) {
+                tasks.add(task);
+                if (scheduled)
+                    return;
+                scheduled = true;
+            }
+            // Runs the stripe on this thread if the executor is shut down, it would stay scheduled without a worker
+            Stripe rejected = share.schedule(this);
+            if (rejected != null)
+                rejected.run();
+        }
+
+        @Override
+        public void run() {
+            // Hand the thread back after a number of tasks so that busy stripes cannot starve the others. While the
+            // executor shuts down the stripes of the tenant are not handed back but drained on this thread.
+            Stripe stripe = this;
+            while (stripe != null) {
+                stripe = share.next(stripe, stripe.runTasks());
+            }
+        }
+
+        /**
+         * Runs the next tasks of the stripe, at most {@code MAX_TASKS_PER_RUN}.
+         *
+         * @return true if tasks are left
+         */
+        private boolean runTasks() {
+            for (int i = 0; i < MAX_TASKS_PER_RUN; i++) {
+                Runnable task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        scheduled = false;
+                        return false;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    // Must not end the run, the stripe would stay scheduled without a worker
+                    logger.error("Error on executing device task", e);
+                } finally {
+                    pending.decrementAndGet();
+                }
+            }
+            return true;
+        }
+    }
+}
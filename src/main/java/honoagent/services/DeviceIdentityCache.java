@@ -0,0 +1,198 @@
+package honoagent.services;
+
+import com.cumulocity.model.idtype.GId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Bounded cache mapping Hono device ids to the GId of their managed object in Cumulocity.
+ * <p>
+ * Entries expire after a TTL and the least recently used entry is evicted once the cache is full.
+ * Devices that could not be created are remembered as missing for a shorter TTL, so a rejected creation is not
+ * retried with every message. Concurrent loads of the same device are collapsed into a single call of the loader.
+ */
+@Component
+public class DeviceIdentityCache {
+
+    final Logger logger = LoggerFactory.getLogger(DeviceIdentityCache.class);
+
+    @Autowired
+    AgentMetrics metrics;
+
+    @Value("${hono.cache.maxSize:100000}")
+    private int maxSize;
+
+    @Value("${hono.cache.ttlSeconds:3600}")
+    private long ttlSeconds;
+
+    @Value("${hono.cache.negativeTtlSeconds:30}")
+    private long negativeTtlSeconds;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    private final ConcurrentMap<String, CompletableFuture<GId>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        metrics.gauge("hono.agent.cache.size", this, DeviceIdentityCache::size);
+        metrics.gauge("hono.agent.cache.hitRatio", this, DeviceIdentityCache::getHitRatio);
+    }
+
+    /**
+     * Returns the cached GId of a device, or {@code null} if the device is unknown, known to be missing or expired.
+     */
+    public GId get(String tenant, String deviceId) {
+        Entry entry = lookup(key(tenant, deviceId));
+        return entry != null ? entry.gid : null;
+    }
+
+    public void put(String tenant, String deviceId, GId gid) {
+        store(key(tenant, deviceId), gid, ttlSeconds);
+    }
+
+    /**
+     * Remembers the device as missing for the negative TTL, {@link #getOrLoad} returns {@code null} for it until then.
+     */
+    public void markMissing(String tenant, String deviceId) {
+        store(key(tenant, deviceId), null, negativeTtlSeconds);
+    }
+
+    public synchronized void invalidate(String tenant, String deviceId) {
+        entries.remove(key(tenant, deviceId));
+    }
+
+    /**
+     * Removes the devices of the tenant that are cached with the GId, e.g. after its managed object was deleted.
+     */
+    public synchronized void invalidate(String tenant, GId gid) {
+        String prefix = key(tenant, "");
+        entries.entrySet().removeIf(entry -> entry.getKey().startsWith(prefix) && gid.equals(entry.getValue().gid));
+    }
+
+    /**
+     * Returns the GId of a device, calling the loader on a cache miss.
+     * <p>
+     * Only one loader call per device runs at a time; concurrent callers wait for its result.
+     * A {@code null} result is cached as a negative entry. A failing loader, e.g. on a timeout, is not cached, its
+     * exception is thrown to all waiting callers and the next call loads again.
+     */
+    public GId getOrLoad(String tenant, String deviceId, Function<String, GId> loader) {
+        String key = key(tenant, deviceId);
+        Entry entry = lookup(key);
+        if (entry != null) {
+            hits.incrementAndGet();
+            return entry.gid;
+        }
+        misses.incrementAndGet();
+        CompletableFuture<GId> load = new CompletableFuture<>();
+        CompletableFuture<GId> running = inFlight.putIfAbsent(key, load);
+        if (running != null) {
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw e;
+            }
+        }
+        try {
+            // Another caller may have finished loading between our lookup and taking ownership
+            entry = lookup(key);
+            GId gid = entry != null ? entry.gid : loader.apply(deviceId);
+            if (entry == null) {
+                store(key, gid, gid != null ? ttlSeconds : negativeTtlSeconds);
+            }
+            load.complete(gid);
+            return gid;
+        } catch (RuntimeException e) {
+            logger.info("Loading device {} failed: {}", deviceId, e.getMessage());
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, load);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the devices of the tenant with a cached GId, without entries for missing or expired devices.
+     */
+    public synchronized Map<String, GId> getDevices(String tenant) {
+        String prefix = key(tenant, "");
+        long now = System.currentTimeMillis();
+        Map<String, GId> devices = new HashMap<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (entry.getKey().startsWith(prefix) && entry.getValue().gid != null && entry.getValue().expiresAt >= now)
+                devices.put(entry.getKey().substring(prefix.length()), entry.getValue().gid);
+        }
+        return devices;
+    }
+
+    /**
+     * Returns the number of devices a single tenant may preload into the cache, an equal share of the cache when it is
+     * shared by the given number of tenants.
+     */
+    public int getTenantShare(int tenants) {
+        return maxSize / Math.max(1, tenants);
+    }
+
+    public double getHitRatio() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    private synchronized Entry lookup(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt < System.currentTimeMillis()) {
+            entries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    private synchronized void store(String key, GId gid, long ttl) {
+        entries.put(key, new Entry(gid, System.currentTimeMillis() + ttl * 1000));
+    }
+
+    private static String key(String tenant, String deviceId) {
+        return tenant + "/" + deviceId;
+    }
+
+    private static final class Entry {
+        final GId gid;
+        final long expiresAt;
+
+        Entry(GId gid, long expiresAt) {
+            this.gid = gid;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package honoagent.services;
+
+import com.cumulocity.microservice.subscription.service.MicroserviceSubscriptionsService;
+import com.cumulocity.model.idtype.GId;
+import com.cumulocity.rest.representation.inventory.ManagedObjectRepresentation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Local snapshot of the device index of each tenant, i.e. the Hono device id to GId mapping of the
+ * {@link DeviceIdentityCache} and the devices known to be assigned to the agent.
+ * <p>
+ * The snapshot is written every {@code hono.snapshot.intervalMillis} and on shutdown. On start it is loaded instead of
+ * preloading the devices from the inventory, the inventory is then reconciled in the background. Reconciling only reads
+ * the devices changed since the snapshot was written. All devices are only read again if the number of devices in the
+ * inventory shows that devices were deleted in the meantime, or if the changes could not be read.
+ * <p>
+ * Writing and removing the snapshot of a tenant are serialized by a lock per tenant, a snapshot removed while it is
+ * written is not written again.
+ * <p>
+ * File format, all numbers big-endian:
+ * <pre>
+ * int magic, short version, long createdAt (epoch millis),
+ * int deviceCount, deviceCount * (UTF deviceId, UTF gid),
+ * int assignedCount, assignedCount * (UTF gid),
+ * long CRC32 of all preceding bytes
+ * </pre>
+ * The file is written to a temporary file and moved into place, a file with a wrong magic, version or checksum is
+ * ignored.
+ */
+@Component
+public class DeviceIndexSnapshot {
+
+    final Logger logger = LoggerFactory.getLogger(DeviceIndexSnapshot.class);
+
+    private static final int MAGIC = 0x48494458; // "HIDX"
+    private static final short VERSION = 1;
+    // Devices changed shortly before the snapshot was written may not be in it
+    private static final long CLOCK_SKEW_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    @Autowired
+    DeviceIdentityCache deviceCache;
+
+    @Autowired
+    CumulocityClient cumulocityClient;
+
+    @Autowired
+    DevicePreloader devicePreloader;
+
+    @Autowired
+    MicroserviceSubscriptionsService subscriptionsService;
+
+    @Value("${hono.snapshot.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hono.snapshot.directory:${java.io.tmpdir}/hono-snapshot}")
+    private String directory;
+
+    @Value("${hono.snapshot.maxAgeSeconds:86400}")
+    private long maxAgeSeconds;
+
+    // Tenants whose snapshot is written, with the lock serializing writing and removing it
+    private final ConcurrentMap<String, Object> tenants = new ConcurrentHashMap<>();
+
+    /**
+     * Devices loaded from a snapshot.
+     */
+    static final class Restored {
+        final Set<String> devices;
+        final long createdAt;
+
+        Restored(Set<String> devices, long createdAt) {
+            this.devices = devices;
+            this.createdAt = createdAt;
+        }
+    }
+
+    /**
+     * Loads the snapshot of the current tenant into the device cache and the agent assignments.
+     *
+     * @return The loaded devices, or {@code null} if there is no usable snapshot.
+     */
+    public Restored load() {
+        if (!enabled)
+            return null;
+        String tenant = subscriptionsService.getTenant();
+        tenants.putIfAbsent(tenant, new Object());
+        Path file = file(tenant);
+        long start = System.nanoTime();
+        try (CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(Files.newInputStream(file)), new CRC32());
+             DataInputStream in = new DataInputStream(checked)) {
+            if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+                logger.warn("Ignoring device index snapshot {} with unknown format", file);
+                return null;
+            }
+            long createdAt = in.readLong();
+            if (System.currentTimeMillis() - createdAt > TimeUnit.SECONDS.toMillis(maxAgeSeconds)) {
+                logger.info("Ignoring device index snapshot {} older than {} s", file, maxAgeSeconds);
+                return null;
+            }
+            int deviceCount = in.readInt();
+            Map<String, GId> devices = new HashMap<>();
+            for (int i = 0; i < deviceCount; i++) {
+                devices.put(in.readUTF(), GId.asGId(in.readUTF()));
+            }
+            int assignedCount = in.readInt();
+            Set<GId> assigned = new HashSet<>();
+            for (int i = 0; i < assignedCount; i++) {
+                assigned.add(GId.asGId(in.readUTF()));
+            }
+            long checksum = checked.getChecksum().getValue();
+            if (in.readLong() != checksum) {
+                logger.warn("Ignoring device index snapshot {} with wrong checksum", file);
+                return null;
+            }
+            devices.forEach((deviceId, gid) -> deviceCache.put(tenant, deviceId, gid));
+            cumulocityClient.getAssignedDevices(tenant).addAll(assigned);
+            logger.info("Loaded {} devices and {} agent assignments of tenant {} from snapshot in {} ms", deviceCount,
+                    assignedCount, tenant, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return new Restored(devices.keySet(), createdAt);
+        } catch (NoSuchFileException e) {
+            logger.info("No device index snapshot for tenant {}", tenant);
+            return null;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Ignoring unreadable device index snapshot {}", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads the agent assignments and the devices of the current tenant changed since the snapshot from the inventory.
+     * If devices were deleted since the snapshot, all devices are read and devices of the snapshot that no longer exist
+     * in the inventory are removed from the device cache.
+     *
+     * @return true if all devices of the tenant are known, false if reading the devices failed or stopped early
+     */
+    public boolean reconcile(ManagedObjectRepresentation agentMor, Restored restored) {
+        String tenant = subscriptionsService.getTenant();
+        long start = System.nanoTime();
+        cumulocityClient.loadAgentChildDevices(agentMor);
+        Set<String> changed = devicePreloader.preloadChangedSince(restored.createdAt - CLOCK_SKEW_MILLIS);
+        if (changed != null) {
+            Set<String> known = new HashSet<>(restored.devices);
+            known.addAll(changed);
+            if (devicePreloader.countDevices() == known.size()) {
+                logger.info("Reconciled device index snapshot of tenant {} in {} ms, {} devices changed", tenant,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), changed.size());
+                return true;
+            }
+            logger.info("Devices of tenant {} were deleted since the device index snapshot, reading all devices", tenant);
+        }
+        Set<String> found = devicePreloader.preload();
+        int removed = 0;
+        if (found != null) {
+            for (String deviceId : restored.devices) {
+                if (!found.contains(deviceId)) {
+                    deviceCache.invalidate(tenant, deviceId);
+                    removed++;
+                }
+            }
+        }
+        logger.info("Reconciled device index snapshot of tenant {} in {} ms, {} devices removed", tenant,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), removed);
+        return found != null;
+    }
+
+    /**
+     * Stops writing the snapshot of the tenant and deletes it.
+     */
+    public void remove(String tenant) {
+        Object lock = tenants.remove(tenant);
+        if (lock == null)
+            return;
+        // Waits for a write in progress, which then finds the tenant removed on its next run
+        synchronized (lock) {
+            try {
+                Files.deleteIfExists(file(tenant));
+            } catch (IOException e) {
+                logger.warn("Error on deleting device index snapshot of tenant {}", tenant, e);
+            }
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${hono.snapshot.intervalMillis:300000}")
+    public void write() {
+        for (Map.Entry<String, Object> tenant : tenants.entrySet()) {
+            synchronized (tenant.getValue()) {
+                // Skips tenants removed since the iteration started, or removed and loaded again
+                if (tenants.get(tenant.getKey()) == tenant.getValue())
+                    write(tenant.getKey());
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        write();
+    }
+
+    private void write(String tenant) {
+        Path file = file(tenant);
+        Map<String, GId> devices = deviceCache.getDevices(tenant);
+        Set<GId> assigned = new HashSet<>(cumulocityClient.getAssignedDevices(tenant));
+        try {
+            Files.createDirectories(file.getParent());
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (BufferedOutputStream buffered = new BufferedOutputStream(Files.newOutputStream(temp));
+                 CheckedOutputStream checked = new CheckedOutputStream(buffered, new CRC32());
+                 DataOutputStream out = new DataOutputStream(checked)) {
+                out.writeInt(MAGIC);
+                out.writeShort(VERSION);
+                out.writeLong(System.currentTimeMillis());
+                out.writeInt(devices.size());
+                for (Map.Entry<String, GId> device : devices.entrySet()) {
+                    out.writeUTF(device.getKey());
+                    out.writeUTF(device.getValue().getValue());
+                }
+                out.writeInt(assigned.size());
+                for (GId gid : assigned) {
+                    out.writeUTF(gid.getValue());
+                }
+                out.flush();
+                // The checksum itself is not part of the checksum
+                new DataOutputStream(buffered).writeLong(checked.getChecksum().getValue());
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.debug("Wrote device index snapshot of tenant {} with {} devices", tenant, devices.size());
+        } catch (IOException e) {
+            logger.warn("Error on writing device index snapshot of tenant {}", tenant, e);
+        }
+    }
+
+    private Path file(String tenant) {
+        return Paths.get(directory, tenant + ".idx");
+    }
+}
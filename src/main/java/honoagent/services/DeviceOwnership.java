@@ -0,0 +1,235 @@
+package honoagent.services;
+
+import com.cumulocity.microservice.subscription.model.core.MicroserviceCredentials;
+import com.cumulocity.microservice.subscription.service.MicroserviceSubscriptionsService;
+import com.cumulocity.rest.representation.inventory.ManagedObjectRepresentation;
+import com.cumulocity.sdk.client.inventory.InventoryApi;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Divides the operations of the devices between the replicas of the agent by consistent hashing.
+ * <p>
+ * The replicas are listed in {@code hono.cluster.members}, each replica names itself in {@code hono.cluster.self}.
+ * Every live member is placed on a hash ring with {@code hono.cluster.virtualNodes} points, a device belongs to the
+ * member of the first point at or after the hash of tenant and device id. Adding or removing a member only moves the
+ * devices of the neighbouring points. Without members the agent runs as a single replica and owns every device.
+ * <p>
+ * Every {@code hono.cluster.heartbeatMillis} each member writes a heartbeat fragment to the agent of every subscribed
+ * tenant and reads the heartbeats of the others. A member without heartbeat for {@code hono.cluster.memberTimeoutMillis}
+ * is taken off the ring of the tenant and its devices move to the remaining members, which are notified to drain the
+ * pending operations they took over. Until the first heartbeat of a tenant all configured members are on its ring.
+ * <p>
+ * This is a partitioning of operations only. Hono distributes the messages of a tenant between the consumers of all
+ * replicas independent of the device, so telemetry and events are processed by whichever replica receives them and
+ * are not routed to the owner. The ownership decides which replica sends the commands of operations, since every
+ * replica is notified of every operation of the agent. State that has to see every message of a device does not work
+ * across replicas: the agent refuses to start as a member with {@code hono.aggregation.enabled} or
+ * {@code hono.dedup.enabled}. Two replicas receiving the first messages of an unknown device at the same time may also
+ * both create it in the inventory, preloading the devices of the agent before the replicas receive messages avoids
+ * that for known devices.
+ */
+@Component
+public class DeviceOwnership {
+
+    final Logger logger = LoggerFactory.getLogger(DeviceOwnership.class);
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final String HEARTBEAT_FRAGMENT = "hono_ClusterMember_";
+
+    @Autowired
+    AgentMetrics metrics;
+
+    @Autowired
+    CumulocityClient cumulocityClient;
+
+    @Autowired
+    InventoryApi inventoryApi;
+
+    @Autowired
+    MicroserviceSubscriptionsService subscriptionsService;
+
+    @Value("${hono.cluster.members:}")
+    private String members;
+
+    @Value("${hono.cluster.self:}")
+    private String self;
+
+    @Value("${hono.cluster.virtualNodes:128}")
+    private int virtualNodes;
+
+    @Value("${hono.cluster.memberTimeoutMillis:30000}")
+    private long memberTimeoutMillis;
+
+    @Value("${hono.aggregation.enabled:false}")
+    private boolean aggregationEnabled;
+
+    @Value("${hono.dedup.enabled:true}")
+    private boolean dedupEnabled;
+
+    private String[] memberNames = new String[0];
+    // Ring of all configured members, used for tenants without heartbeats yet
+    private Ring configured;
+    private final ConcurrentMap<String, Ring> rings = new ConcurrentHashMap<>();
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+
+    @PostConstruct
+    public void init() {
+        Set<String> names = new LinkedHashSet<>();
+        for (String member : members.split(",")) {
+            if (!member.trim().isEmpty())
+                names.add(member.trim());
+        }
+        if (names.isEmpty())
+            return;
+        if (!names.contains(self))
+            throw new IllegalStateException("hono.cluster.self '" + self + "' is not one of hono.cluster.members " + names);
+        // Hono does not deliver the messages of a device to the same replica, each replica would only see a part
+        if (aggregationEnabled)
+            throw new IllegalStateException("hono.aggregation.enabled is not supported with hono.cluster.members");
+        if (dedupEnabled)
+            throw new IllegalStateException("hono.dedup.enabled must be false with hono.cluster.members");
+        memberNames = names.toArray(new String[0]);
+        configured = new Ring(names);
+        metrics.gauge("hono.agent.cluster.members", memberNames, m -> m.length);
+        logger.info("Running as cluster member {} of {}", self, names);
+    }
+
+    public boolean isPartitioned() {
+        return configured != null;
+    }
+
+    /**
+     * Registers a listener called with the tenant whenever the live members of a tenant change.
+     */
+    public void addMembershipListener(Consumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Returns true if the device is handled by this replica.
+     */
+    public boolean isOwner(String tenant, String deviceId) {
+        return !isPartitioned() || self.equals(getOwner(tenant, deviceId));
+    }
+
+    /**
+     * Returns the member owning the device, or {@code null} if the agent is not partitioned.
+     */
+    public String getOwner(String tenant, String deviceId) {
+        if (!isPartitioned())
+            return null;
+        return rings.getOrDefault(tenant, configured).getOwner(hash(tenant + "/" + deviceId));
+    }
+
+    /**
+     * Writes the heartbeat of this member to the agent of every subscribed tenant and updates the live members.
+     */
+    @Scheduled(fixedDelayString = "${hono.cluster.heartbeatMillis:10000}")
+    public void heartbeat() {
+        if (!isPartitioned())
+            return;
+        for (MicroserviceCredentials credentials : subscriptionsService.getAll()) {
+            String tenant = credentials.getTenant();
+            try {
+                subscriptionsService.runForTenant(tenant, () -> heartbeat(tenant));
+            } catch (Exception e) {
+                // The members of the tenant stay as they are until the next heartbeat succeeds
+                logger.warn("Cluster heartbeat of tenant {} failed: {}", tenant, e.getMessage());
+            }
+        }
+    }
+
+    private void heartbeat(String tenant) {
+        ManagedObjectRepresentation agent = cumulocityClient.getAgentMor();
+        long now = System.currentTimeMillis();
+        Map<String, Object> beat = new HashMap<>();
+        beat.put("name", self);
+        beat.put("time", now);
+        ManagedObjectRepresentation update = new ManagedObjectRepresentation();
+        update.setId(agent.getId());
+        update.set(beat, heartbeatFragment(self));
+        metrics.rest("inventory.update", () -> inventoryApi.update(update));
+        ManagedObjectRepresentation current = metrics.rest("inventory.get", () -> inventoryApi.get(agent.getId()));
+        Set<String> live = new LinkedHashSet<>();
+        for (String member : memberNames) {
+            Object value = current.get(heartbeatFragment(member));
+            Object time = value instanceof Map ? ((Map<?, ?>) value).get("time") : null;
+            if (member.equals(self) || time instanceof Number && now - ((Number) time).longValue() <= memberTimeoutMillis)
+                live.add(member);
+        }
+        if (rings.getOrDefault(tenant, configured).members.equals(live))
+            return;
+        rings.put(tenant, new Ring(live));
+        logger.info("Live cluster members of tenant {} changed to {}", tenant, live);
+        for (Consumer<String> listener : listeners) {
+            listener.accept(tenant);
+        }
+    }
+
+    private static String heartbeatFragment(String member) {
+        return HEARTBEAT_FRAGMENT + member.replaceAll("[^A-Za-z0-9_]", "_");
+    }
+
+    private static long hash(String value) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        // Finalizer of MurmurHash3, FNV alone leaves similar names close together on the ring
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private final class Ring {
+        final Set<String> members;
+        // Points sorted by hash, owners[i] is the member of points[i]
+        final long[] points;
+        final String[] owners;
+
+        Ring(Set<String> members) {
+            this.members = members;
+            String[] names = members.toArray(new String[0]);
+            long[][] ring = new long[names.length * virtualNodes][];
+            for (int m = 0; m < names.length; m++) {
+                for (int v = 0; v < virtualNodes; v++) {
+                    ring[m * virtualNodes + v] = new long[]{hash(names[m] + "#" + v), m};
+                }
+            }
+            Arrays.sort(ring, (a, b) -> Long.compare(a[0], b[0]));
+            points = new long[ring.length];
+            owners = new String[ring.length];
+            for (int i = 0; i < ring.length; i++) {
+                points[i] = ring[i][0];
+                owners[i] = names[(int) ring[i][1]];
+            }
+        }
+
+        String getOwner(long hash) {
+            int i = Arrays.binarySearch(points, hash);
+            if (i < 0)
+                i = -i - 1;
+            // Past the last point the ring wraps around to the first
+            return owners[i == points.length ? 0 : i];
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package honoagent.services;
+
+import com.cumulocity.microservice.subscription.service.MicroserviceSubscriptionsService;
+import com.cumulocity.model.idtype.GId;
+import com.cumulocity.rest.representation.identity.ExternalIDRepresentation;
+import com.cumulocity.rest.representation.PageStatisticsRepresentation;
+import com.cumulocity.rest.representation.inventory.ManagedObjectCollectionRepresentation;
+import com.cumulocity.rest.representation.inventory.ManagedObjectRepresentation;
+import com.cumulocity.sdk.client.Param;
+import com.cumulocity.sdk.client.QueryParam;
+import com.cumulocity.sdk.client.SDKException;
+import com.cumulocity.sdk.client.identity.IdentityApi;
+import com.cumulocity.sdk.client.inventory.InventoryApi;
+import com.cumulocity.sdk.client.inventory.InventoryFilter;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the Hono devices of a tenant into the {@link DeviceIdentityCache} before its consumers are attached.
+ * <p>
+ * The {@code c8y_HonoDevice} managed objects are read page by page. Devices created by this agent carry their Hono
+ * device id in the {@code hono_DeviceId} fragment and need no further call, for older devices the {@code c8y_Serial}
+ * external id is looked up with at most {@code hono.preload.identityConcurrency} lookups at a time. Every subscribed
+ * tenant may fill an equal share of the cache, loading stops once a tenant has loaded its share, so that the first
+ * tenant cannot fill the cache for all others. Besides all devices, only the devices changed since a given time can be loaded, which is used
+ * to bring a device index snapshot up to date.
+ */
+@Component
+public class DevicePreloader {
+
+    final Logger logger = LoggerFactory.getLogger(DevicePreloader.class);
+
+    private static final Param QUERY = () -> "query";
+    private static final Param WITH_TOTAL_PAGES = () -> "withTotalPages";
+
+    @Autowired
+    InventoryApi inventoryApi;
+
+    @Autowired
+    IdentityApi identityApi;
+
+    @Autowired
+    DeviceIdentityCache deviceCache;
+
+    @Autowired
+    MicroserviceSubscriptionsService subscriptionsService;
+
+    @Autowired
+    AgentMetrics metrics;
+
+    @Value("${hono.preload.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hono.preload.pageSize:2000}")
+    private int pageSize;
+
+    @Value("${hono.preload.identityConcurrency:8}")
+    private int identityConcurrency;
+
+    private ExecutorService lookups;
+
+    @PostConstruct
+    public void start() {
+        AtomicInteger threadCount = new AtomicInteger();
+        lookups = Executors.newFixedThreadPool(identityConcurrency, runnable -> {
+            Thread thread = new Thread(runnable, "device-preloader-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Loads the Hono devices of the current tenant. Failures are logged, devices that were not loaded are looked up
+     * on their first message as before.
+     *
+     * @return The ids of all loaded devices, or {@code null} if preloading is disabled or did not load all devices.
+     */
+    public Set<String> preload() {
+        return load(null);
+    }
+
+    /**
+     * Loads the Hono devices of the current tenant that were created or updated after the given time.
+     *
+     * @return The ids of the loaded devices, or {@code null} if preloading is disabled or did not load all changed
+     * devices.
+     */
+    public Set<String> preloadChangedSince(long since) {
+        return load("$filter=(type eq '" + CumulocityClient.HONO_DEVICE_TYPE + "' and lastUpdated.date gt '"
+                + new DateTime(since, DateTimeZone.UTC) + "')");
+    }
+
+    /**
+     * Returns the number of Hono devices of the current tenant in the inventory, or -1 if it could not be read.
+     */
+    public long countDevices() {
+        InventoryFilter filter = new InventoryFilter().byType(CumulocityClient.HONO_DEVICE_TYPE);
+        try {
+            // With a page size of 1 the number of pages is the number of devices
+            ManagedObjectCollectionRepresentation page = metrics.rest("inventory.list",
+                    () -> inventoryApi.getManagedObjectsByFilter(filter).get(1, new QueryParam(WITH_TOTAL_PAGES, "true")));
+            PageStatisticsRepresentation statistics = page.getPageStatistics();
+            Number totalPages = statistics != null ? statistics.getTotalPages() : null;
+            return totalPages != null ? totalPages.longValue() : -1;
+        } catch (SDKException e) {
+            logger.warn("Error on counting devices of tenant {}", subscriptionsService.getTenant(), e);
+            return -1;
+        }
+    }
+
+    private Set<String> load(String query) {
+        if (!enabled)
+            return null;
+        final String tenant = subscriptionsService.getTenant();
+        final InventoryFilter filter = new InventoryFilter().byType(CumulocityClient.HONO_DEVICE_TYPE);
+        final int share = deviceCache.getTenantShare(getTenantCount());
+        final QueryParam[] params = query != null ? new QueryParam[]{new QueryParam(QUERY, encode(query))} : new QueryParam[0];
+        final Semaphore window = new Semaphore(identityConcurrency);
+        final Set<String> loaded = ConcurrentHashMap.newKeySet();
+        final AtomicBoolean lookupFailed = new AtomicBoolean();
+        long start = metrics.start();
+        int devices = 0;
+        boolean complete = false;
+        try {
+            for (ManagedObjectRepresentation mor : metrics.rest("inventory.list", () -> inventoryApi.getManagedObjectsByFilter(filter).get(pageSize, params)).allPages()) {
+                if (devices >= share) {
+                    logger.info("Tenant {} has loaded its share of {} devices of the device cache, stopping preload", tenant, share);
+                    devices = -1;
+                    break;
+                }
+                devices++;
+                Object deviceId = mor.getProperty(CumulocityClient.DEVICE_ID_FRAGMENT);
+                if (deviceId instanceof String) {
+                    deviceCache.put(tenant, (String) deviceId, mor.getId());
+                    loaded.add((String) deviceId);
+                    continue;
+                }
+                final GId gid = mor.getId();
+                window.acquireUninterruptibly();
+                lookups.execute(() -> {
+                    try {
+                        subscriptionsService.runForTenant(tenant, () -> loadSerial(tenant, gid, loaded, lookupFailed));
+                    } finally {
+                        window.release();
+                    }
+                });
+            }
+            complete = devices >= 0;
+        } catch (SDKException e) {
+            logger.error("Error on preloading devices of tenant {}", tenant, e);
+        } finally {
+            window.acquireUninterruptibly(identityConcurrency);
+            window.release(identityConcurrency);
+        }
+        logger.info("Preloaded {} {}Hono devices of tenant {} in {} ms", loaded.size(), query != null ? "changed " : "", tenant,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        if (complete && lookupFailed.get()) {
+            logger.info("External ids of some devices of tenant {} could not be loaded, preload is incomplete", tenant);
+            complete = false;
+        }
+        return complete ? loaded : null;
+    }
+
+    /**
+     * Returns true if devices are preloaded at all.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    private int getTenantCount() {
+        Collection<?> tenants = subscriptionsService.getAll();
+        return tenants != null ? tenants.size() : 1;
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void loadSerial(String tenant, GId gid, Set<String> loaded, AtomicBoolean lookupFailed) {
+        try {
+            for (ExternalIDRepresentation extId : metrics.rest("identity.list", () -> identityApi.getExternalIdsOfGlobalId(gid).get()).getExternalIds()) {
+                if (CumulocityClient.SERIAL_TYPE.equals(extId.getType())) {
+                    deviceCache.put(tenant, extId.getExternalId(), gid);
+                    loaded.add(extId.getExternalId());
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.info("Error on loading external ids of device {}", gid.getValue(), e);
+            lookupFailed.set(true);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        lookups.shutdownNow();
+    }
+}
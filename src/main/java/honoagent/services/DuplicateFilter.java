@@ -0,0 +1,149 @@
+package honoagent.services;
+
+import java.util.Arrays;
+
+/**
+ * Recognizes messages that were already received within a time window, e.g. events that Hono delivers again after
+ * a reconnect.
+ * <p>
+ * Messages are identified by a 64-bit fingerprint of device id and message id, or of device id, creation time and
+ * payload if the message has no id. The window is split into time slices, each an open addressing table of
+ * fingerprints with a fixed capacity. A fingerprint is a duplicate while it is in any slice, new fingerprints go
+ * into the newest slice. When the time of the newest slice is up or the slice is full, the oldest slice is cleared
+ * and becomes the newest. Memory is bounded by {@code maxEntries} fingerprints; under high load the window gets
+ * shorter instead.
+ */
+class DuplicateFilter {
+
+    private static final int SLICES = 4;
+    private static final long EMPTY = 0;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long sliceMillis;
+    private final int sliceCapacity;
+    private final long[][] slices;
+    private final int[] sizes = new int[SLICES];
+    private final int mask;
+    private int newest;
+    private long newestStartedAt;
+    private volatile long checked;
+    private volatile long duplicates;
+
+    DuplicateFilter(long windowMillis, int maxEntries) {
+        this.sliceMillis = Math.max(1, windowMillis / SLICES);
+        this.sliceCapacity = Math.max(1, maxEntries / SLICES);
+        // At most half of a table is used, which keeps the probe sequences short
+        int tableSize = Integer.highestOneBit(Math.max(2, sliceCapacity * 2 - 1)) << 1;
+        this.slices = new long[SLICES][tableSize];
+        this.mask = tableSize - 1;
+        this.newestStartedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns true if the fingerprint was already seen within the window, otherwise remembers it.
+     * Fingerprint {@link #EMPTY} is never a duplicate.
+     */
+    synchronized boolean isDuplicate(long fingerprint, long now) {
+        if (fingerprint == EMPTY)
+            return false;
+        checked++;
+        for (long[] slice : slices) {
+            if (contains(slice, fingerprint)) {
+                duplicates++;
+                return true;
+            }
+        }
+        if (now - newestStartedAt >= sliceMillis || sizes[newest] >= sliceCapacity)
+            rotate(now);
+        add(slices[newest], fingerprint);
+        sizes[newest]++;
+        return false;
+    }
+
+    long getCheckedCount() {
+        return checked;
+    }
+
+    long getDuplicateCount() {
+        return duplicates;
+    }
+
+    double getHitRatio() {
+        long total = checked;
+        return total == 0 ? 0 : (double) duplicates / total;
+    }
+
+    /**
+     * Returns the fingerprint of the message, or {@link #EMPTY} if the message has neither an id nor a creation time
+     * and can therefore not be told apart from a message with the same payload.
+     */
+    static long fingerprint(DecodedMessage message) {
+        long hash = hash(FNV_OFFSET, message.getDeviceId());
+        Object messageId = message.getMessageId();
+        if (messageId != null) {
+            hash = hash(hash, messageId.toString());
+        } else if (message.getCreationTime() > 0) {
+            hash = hash(hash, message.getCreationTime());
+            hash = hash(hash, message.getPayloadHash());
+        } else {
+            return EMPTY;
+        }
+        return hash == EMPTY ? 1 : hash;
+    }
+
+    private void rotate(long now) {
+        // Clear one slice per elapsed slice time, but at least one for a full slice
+        long elapsed = Math.max(1, (now - newestStartedAt) / sliceMillis);
+        for (long i = 0; i < Math.min(elapsed, SLICES); i++) {
+            newest = (newest + 1) % SLICES;
+            Arrays.fill(slices[newest], EMPTY);
+            sizes[newest] = 0;
+        }
+        newestStartedAt = now;
+    }
+
+    private boolean contains(long[] slice, long fingerprint) {
+        for (int i = index(fingerprint); ; i = (i + 1) & mask) {
+            if (slice[i] == fingerprint)
+                return true;
+            if (slice[i] == EMPTY)
+                return false;
+        }
+    }
+
+    private void add(long[] slice, long fingerprint) {
+        int i = index(fingerprint);
+        while (slice[i] != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        slice[i] = fingerprint;
+    }
+
+    private int index(long fingerprint) {
+        // Finalizer of MurmurHash3, spreads the bits of the fingerprint over the table index
+        long h = fingerprint;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+
+    private static long hash(long hash, String value) {
+        if (value == null)
+            return hash(hash, 0L);
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        // Separates the strings so that "ab" + "c" differs from "a" + "bc"
+        return (hash ^ 0xff) * FNV_PRIME;
+    }
+
+    private static long hash(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash = (hash ^ (value & 0xff)) * FNV_PRIME;
+            value >>>= 8;
+        }
+        return hash;
+    }
+}
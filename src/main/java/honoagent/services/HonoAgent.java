@@ -1,9 +1,12 @@
 package honoagent.services;
 
 import com.cumulocity.microservice.subscription.model.MicroserviceSubscriptionAddedEvent;
+import com.cumulocity.microservice.subscription.model.MicroserviceSubscriptionRemovedEvent;
 import com.cumulocity.microservice.subscription.service.MicroserviceSubscriptionsService;
+import com.cumulocity.rest.representation.event.EventRepresentation;
 import com.cumulocity.rest.representation.inventory.ManagedObjectReferenceRepresentation;
 import com.cumulocity.rest.representation.inventory.ManagedObjectRepresentation;
+import com.cumulocity.rest.representation.measurement.MeasurementRepresentation;
 import com.cumulocity.rest.representation.tenant.OptionRepresentation;
 import honoagent.config.HonoConfiguration;
 import io.vertx.core.Future;
@@ -14,27 +17,39 @@ import org.apache.qpid.proton.message.Message;
 import org.eclipse.hono.client.*;
 import org.eclipse.hono.config.ClientConfigProperties;
 import org.eclipse.hono.util.BufferResult;
-import org.eclipse.hono.util.MessageHelper;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Service
 public class HonoAgent {
 
     final Logger logger = LoggerFactory.getLogger(HonoAgent.class);
     private final Vertx vertx = Vertx.vertx();
-    private final long RECONNECT_INTERVAL_MILLIS = 5000;
+    private static final String DEVICE_TYPE_PROPERTY = "device_type";
+    private static final String TELEMETRY_CONSUMER = "Telemetry consumer";
+    private static final String EVENT_CONSUMER = "Event consumer";
+    private static final String COMMAND_CLIENT = "Command client";
+    private static final int STARTUP_THREADS = 4;
+    private static final long STARTUP_RETRY_SECONDS = 60;
 
 
     @Autowired
@@ -43,222 +58,539 @@ public class HonoAgent {
     HonoConfiguration honoConfiguration;
     @Autowired
     CumulocityClient cumulocityClient;
-    private ApplicationClientFactory clientFactory;
-    private long reconnectTimerId = -1;
-    private String honoHost = null;
-    private Integer honoPort = null;
-    private String honoUser = null;
-    private String honoPW = null;
-    private String honoTenantId = null;
-    public CommandClient commandClient = null;
+    @Autowired
+    DeviceExecutor deviceExecutor;
+    @Autowired
+    MeasurementMapper measurementMapper;
+    @Autowired
+    AgentMetrics metrics;
+    @Autowired
+    OperationDrainer operationDrainer;
+    @Autowired
+    DevicePreloader devicePreloader;
+    @Autowired
+    DeviceIndexSnapshot deviceIndexSnapshot;
+    @Autowired
+    TelemetryAggregator telemetryAggregator;
+    @Autowired
+    PayloadDecoders payloadDecoders;
+    @Autowired
+    TelemetryLane telemetryLane;
+    private final ConcurrentMap<String, TenantConnection> connections = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, TenantConnection> routes = new ConcurrentHashMap<>();
+
+    @Value("${hono.flow.prefetch:200}")
+    private int prefetch;
+    @Value("${hono.flow.telemetry.highWatermark:${hono.flow.highWatermark:5000}}")
+    private int telemetryHighWatermark;
+    @Value("${hono.flow.telemetry.lowWatermark:${hono.flow.lowWatermark:2500}}")
+    private int telemetryLowWatermark;
+    @Value("${hono.flow.event.highWatermark:${hono.flow.highWatermark:5000}}")
+    private int eventHighWatermark;
+    @Value("${hono.flow.event.lowWatermark:${hono.flow.lowWatermark:2500}}")
+    private int eventLowWatermark;
+    @Value("${hono.command.window:100}")
+    private int commandWindow;
+    @Value("${hono.command.queueCapacity:10000}")
+    private int commandQueueCapacity;
+    @Value("${hono.command.timeoutMillis:10000}")
+    private long commandTimeoutMillis;
+    @Value("${hono.command.maxTimeoutMillis:${hono.command.timeoutMillis:10000}}")
+    private long commandMaxTimeoutMillis;
+    @Value("${hono.reconnect.minDelayMillis:500}")
+    private long reconnectMinDelayMillis;
+    @Value("${hono.reconnect.maxDelayMillis:60000}")
+    private long reconnectMaxDelayMillis;
+    @Value("${hono.dedup.enabled:true}")
+    private boolean dedupEnabled;
+    @Value("${hono.dedup.windowSeconds:600}")
+    private long dedupWindowSeconds;
+    @Value("${hono.dedup.maxEntries:200000}")
+    private int dedupMaxEntries;
+    @Value("${hono.log.payloadSampleInterval:1000}")
+    private int payloadSampleInterval;
+    private final AtomicLong loggedMessages = new AtomicLong();
+    private ScheduledExecutorService startup;
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadCount = new AtomicInteger();
+        startup = Executors.newScheduledThreadPool(STARTUP_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "tenant-startup-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        startup.shutdownNow();
+    }
 
     @EventListener
     private void onAdded(MicroserviceSubscriptionAddedEvent event) {
+        final String tenant = event.getCredentials().getTenant();
+        logger.info("Subscription added for tenant: " + tenant);
+        measurementMapper.reload(tenant);
+        TenantConnection connection = new TenantConnection(event.getCredentials());
+        TenantConnection previous = connections.put(tenant, connection);
+        if (previous != null) {
+            logger.info("Replacing existing connection of tenant {}", tenant);
+            closeConnection(previous);
+        }
+        // The startup waits for the configuration and preloads devices, which must not block the event thread
+        startup.execute(() -> start(connection));
+    }
+
+    /**
+     * Returns a future that completes once the consumers and the command client of the tenant have been opened.
+     */
+    public CompletableFuture<Void> whenReady(String tenant) {
+        TenantConnection connection = connections.get(tenant);
+        if (connection == null) {
+            CompletableFuture<Void> notSubscribed = new CompletableFuture<>();
+            notSubscribed.completeExceptionally(new IllegalStateException("Tenant " + tenant + " is not subscribed"));
+            return notSubscribed;
+        }
+        return connection.ready;
+    }
+
+    Collection<TenantConnection> getConnections() {
+        return connections.values();
+    }
+
+    /**
+     * Returns the Vert.x instance of the Hono connections, which other non-blocking clients of the agent share.
+     */
+    Vertx getVertx() {
+        return vertx;
+    }
+
+    /**
+     * Starts the tenant: waits for the Hono configuration, preloads the devices and opens the connection. Every step
+     * that fails is retried in {@value #STARTUP_RETRY_SECONDS} seconds.
+     */
+    private void start(TenantConnection connection) {
+        final String tenant = connection.getTenant();
+        // The subscription may have been removed or replaced in the meantime
+        if (connections.get(tenant) != connection)
+            return;
         try {
-            logger.info("Subscription added for tenant: " + event.getCredentials().getTenant());
-            while (honoTenantId == null || honoPort == null || honoHost == null || honoUser == null || honoPW == null) {
-                retrieveRequiredConfiguration();
-                boolean hasErrors = false;
-                if (honoTenantId == null) {
-                    logger.error("Hono 'tenantid' is missing. The Hono TenantId must be maintained in the configuration file or in tenant options");
-                    hasErrors = true;
-                }
-                if (honoPort == null) {
-                    logger.error("Hono 'port' is missing. The Hono Port must be maintained in the configuration file or in tenant options");
+            if (!connection.isConfigured()) {
+                retrieveRequiredConfiguration(connection);
+                if (!checkConfiguration(connection)) {
+                    logger.info("Will retry to retrieve required Configuration in {} sec.!", STARTUP_RETRY_SECONDS);
+                    connection.unconfigured = true;
+                    retryStart(connection);
+                    return;
                 }
+                connection.unconfigured = false;
+            }
 
-                if (honoHost == null) {
-                    logger.error("Hono 'host' is missing. The Hono Host must be maintained in the configuration file or in tenant options");
-                    hasErrors = true;
-                }
-                if (honoUser == null) {
-                    logger.error("Hono 'username' is missing. The Hono Username must be maintained in the configuration file or in tenant options");
-                    hasErrors = true;
-                }
-                if (honoPW == null) {
-                    logger.error("Hono 'password' is missing. The Hono Password must be maintained in the configuration file or in tenant options");
-                    hasErrors = true;
-                }
-                if (hasErrors) {
-                    logger.info("Will retry to retrieve required Configuration in 60 sec.!");
-                    try {
-                        Thread.sleep(60000);
-                    } catch (InterruptedException e) {
-                        logger.error("Thread sleep interrupted {}", e.getStackTrace());
-                    }
-                }
+            TenantConnection routed = routes.get(connection.honoTenantId);
+            if (routed != null && !routed.getTenant().equals(tenant)) {
+                logger.error("Hono tenant {} is already routed to tenant {}, ignoring tenant {}", connection.honoTenantId, routed.getTenant(), tenant);
+                connections.remove(tenant, connection);
+                return;
             }
+            routes.put(connection.honoTenantId, connection);
 
-            final ClientConfigProperties props = new ClientConfigProperties();
-            props.setHost(honoConfiguration.getHost());
-            props.setPort(honoConfiguration.getPort());
-            props.setUsername(honoConfiguration.getUsername());
-            props.setPassword(honoConfiguration.getPassword());
-            //props.setTrustStorePath("target/config/hono-demo-certs-jar/trusted-certs.pem");
-            props.setHostnameVerificationRequired(false);
-            clientFactory = ApplicationClientFactory.create(HonoConnection.newConnection(vertx, props));
-            ManagedObjectRepresentation agentMor = cumulocityClient.findAgentMor();
-            cumulocityClient.registerForOperations(agentMor.getId());
-            connectWithRetry();
-            cumulocityClient.processFirstPendingOperation(agentMor);
+            subscriptionsService.runForTenant(tenant, () -> {
+                ManagedObjectRepresentation agentMor = cumulocityClient.findAgentMor();
+                DeviceIndexSnapshot.Restored restored = deviceIndexSnapshot.load();
+                if (restored == null) {
+                    cumulocityClient.loadAgentChildDevices(agentMor);
+                    // Devices are known before the first message, so no message pays for a cold lookup
+                    preloaded(connection, devicePreloader.preload() != null);
+                } else {
+                    // The snapshot serves the first messages while the inventory is read in the background
+                    startup.execute(() -> subscriptionsService.runForTenant(tenant, () -> preloaded(connection, deviceIndexSnapshot.reconcile(agentMor, restored))));
+                }
+                cumulocityClient.registerForOperations(agentMor.getId());
+            });
+            // Synchronized with closeConnection, so that a subscription removed in the meantime is not connected
+            synchronized (connection) {
+                if (connections.get(tenant) != connection)
+                    return;
+                final ClientConfigProperties props = new ClientConfigProperties();
+                props.setHost(connection.honoHost);
+                props.setPort(connection.honoPort);
+                props.setUsername(connection.honoUser);
+                props.setPassword(connection.honoPW);
+                //props.setTrustStorePath("target/config/hono-demo-certs-jar/trusted-certs.pem");
+                props.setHostnameVerificationRequired(false);
+                // Credit is granted by the CreditControllers depending on the pipeline depth
+                props.setInitialCredits(0);
+                // Reconnects are owned by the Reconnector, the Hono client only makes a single attempt per connect
+                props.setReconnectAttempts(0);
+                connection.clientFactory = ApplicationClientFactory.create(HonoConnection.newConnection(vertx, props));
+                connection.telemetryCredit = new CreditController("telemetry", connection.telemetryInFlight::get, prefetch, telemetryHighWatermark, telemetryLowWatermark);
+                connection.eventCredit = new CreditController("event", connection.eventInFlight::get, prefetch, eventHighWatermark, eventLowWatermark);
+                connection.commandDispatcher = new CommandDispatcher(tenant, vertx, commandWindow, commandQueueCapacity, commandTimeoutMillis, commandMaxTimeoutMillis);
+                if (dedupEnabled)
+                    connection.eventDuplicates = new DuplicateFilter(TimeUnit.SECONDS.toMillis(dedupWindowSeconds), dedupMaxEntries);
+                registerMeters(connection);
+                connect(connection);
+            }
         } catch (Exception e) {
-            logger.error("Error on Initializatzion {}", e.getMessage());
-            e.printStackTrace();
+            logger.error("Error on starting tenant {}, will retry in {} sec.", tenant, STARTUP_RETRY_SECONDS, e);
+            retryStart(connection);
+        }
+    }
+
+    /**
+     * Registers the meters of the tenant, replacing those of an earlier start attempt which refer to its old objects.
+     * Must be called while holding the lock of the connection.
+     */
+    private void registerMeters(TenantConnection connection) {
+        final String tenant = connection.getTenant();
+        removeMeters(connection);
+        if (connection.eventDuplicates != null) {
+            connection.meters.add(metrics.gauge("hono.agent.dedup.hitRatio", "tenant", tenant, connection.eventDuplicates, DuplicateFilter::getHitRatio));
+            connection.meters.add(metrics.counter("hono.agent.dedup.checked", "tenant", tenant, connection.eventDuplicates, DuplicateFilter::getCheckedCount));
+            connection.meters.add(metrics.counter("hono.agent.dedup.duplicates", "tenant", tenant, connection.eventDuplicates, DuplicateFilter::getDuplicateCount));
+        }
+        connection.meters.add(metrics.gauge("hono.agent.tenant.inflight", "tenant", tenant, connection, TenantConnection::getInFlight));
+        connection.meters.add(metrics.gauge("hono.agent.command.queued", "tenant", tenant, connection.commandDispatcher, CommandDispatcher::getQueuedCount));
+        connection.meters.add(metrics.gauge("hono.agent.command.inflight", "tenant", tenant, connection.commandDispatcher, CommandDispatcher::getInFlightCount));
+    }
+
+    private void removeMeters(TenantConnection connection) {
+        connection.meters.forEach(metrics::remove);
+        connection.meters.clear();
+    }
+
+    private void retryStart(TenantConnection connection) {
+        startup.schedule(() -> start(connection), STARTUP_RETRY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private boolean checkConfiguration(TenantConnection connection) {
+        boolean valid = true;
+        if (connection.honoTenantId == null) {
+            logger.error("Hono 'tenantid' is missing. The Hono TenantId must be maintained in the configuration file or in tenant options");
+            valid = false;
+        }
+        if (connection.honoPort == null) {
+            logger.error("Hono 'port' is missing. The Hono Port must be maintained in the configuration file or in tenant options");
+            valid = false;
+        }
+        if (connection.honoHost == null) {
+            logger.error("Hono 'host' is missing. The Hono Host must be maintained in the configuration file or in tenant options");
+            valid = false;
+        }
+        if (connection.honoUser == null) {
+            logger.error("Hono 'username' is missing. The Hono Username must be maintained in the configuration file or in tenant options");
+            valid = false;
         }
+        if (connection.honoPW == null) {
+            logger.error("Hono 'password' is missing. The Hono Password must be maintained in the configuration file or in tenant options");
+            valid = false;
+        }
+        return valid;
     }
 
-    private void retrieveRequiredConfiguration() throws ExecutionException, InterruptedException {
+    @EventListener
+    private void onRemoved(MicroserviceSubscriptionRemovedEvent event) {
+        TenantConnection connection = connections.remove(event.getTenant());
+        if (connection != null) {
+            logger.info("Subscription removed for tenant: " + event.getTenant());
+            if (connection.honoTenantId != null)
+                routes.remove(connection.honoTenantId, connection);
+            deviceIndexSnapshot.remove(event.getTenant());
+            closeConnection(connection);
+        }
+    }
+
+    private void closeConnection(TenantConnection connection) {
+        synchronized (connection) {
+            if (connection.reconnector != null)
+                connection.reconnector.close();
+            if (connection.telemetryCredit != null)
+                connection.telemetryCredit.detach();
+            if (connection.eventCredit != null)
+                connection.eventCredit.detach();
+            if (connection.commandDispatcher != null)
+                connection.commandDispatcher.close();
+            if (connection.clientFactory != null)
+                connection.clientFactory.disconnect();
+            removeMeters(connection);
+        }
+    }
+
+    private void retrieveRequiredConfiguration(TenantConnection connection) {
         logger.info("Retrieving Hono Configuration from Tenant Options or Configuration File..");
         try {
-            logger.info("Getting Tenant Options from Tenant {}", subscriptionsService.getTenant());
-            List<OptionRepresentation> optionList = cumulocityClient.getTenantOptions("hono");
+            logger.info("Getting Tenant Options from Tenant {}", connection.getTenant());
+            List<OptionRepresentation> optionList = subscriptionsService.callForTenant(connection.getTenant(), () -> cumulocityClient.getTenantOptions("hono"));
             for (OptionRepresentation op : optionList) {
                 if ("tenantid".equals(op.getKey())) {
-                    honoTenantId = op.getValue();
+                    connection.honoTenantId = op.getValue();
                 }
                 if ("username".equals(op.getKey())) {
-                    honoUser = op.getValue();
+                    connection.honoUser = op.getValue();
                 }
                 if ("credentials.password".equals(op.getKey())) {
-                    honoPW = op.getValue();
+                    connection.honoPW = op.getValue();
                 }
                 if ("host".equals(op.getKey())) {
-                    honoHost = op.getValue();
+                    connection.honoHost = op.getValue();
                 }
                 if ("port".equals(op.getKey())) {
                     if (op.getValue() != null)
-                        honoPort = Integer.valueOf(op.getValue());
+                        connection.honoPort = Integer.valueOf(op.getValue());
                 }
             }
-            if (honoPort == null)
-                honoPort = honoConfiguration.getPort();
-            if (honoHost == null)
-                honoHost = honoConfiguration.getHost();
-            if (honoPW == null)
-                honoPW = honoConfiguration.getPassword();
-            if (honoTenantId == null)
-                honoTenantId = honoConfiguration.getTenantid();
-            if (honoUser == null)
-                honoUser = honoConfiguration.getUsername();
+            if (connection.honoPort == null)
+                connection.honoPort = honoConfiguration.getPort();
+            if (connection.honoHost == null)
+                connection.honoHost = honoConfiguration.getHost();
+            if (connection.honoPW == null)
+                connection.honoPW = honoConfiguration.getPassword();
+            if (connection.honoTenantId == null)
+                connection.honoTenantId = honoConfiguration.getTenantid();
+            if (connection.honoUser == null)
+                connection.honoUser = honoConfiguration.getUsername();
         } catch (Exception e) {
             logger.error("Error retrieving Tenant Options {}", e.getStackTrace());
         }
     }
 
-    private void connectWithRetry() {
-        try {
-            //Refresh TenantId if TenantId or other credentials have been changed.
-            retrieveRequiredConfiguration();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        clientFactoryConnect(this::onDisconnect).compose(connection -> {
-            logger.info("Connected to IoT Hub messaging endpoint.");
-            return createTelemetryConsumer().compose(createdConsumer -> {
-                logger.info("Consumer ready [tenant: {}, type: Telemetry]", honoTenantId);
-                return createEventConsumer().compose(createdEventConsumer -> {
-                    logger.info("Consumer ready [tenant: {}, type: Event]", honoTenantId);
-                    final Future<CommandClient> commandClientFuture = clientFactory.getOrCreateCommandClient(honoTenantId);
-                    commandClientFuture.setHandler(commandClientResult -> {
-                        commandClient = commandClientResult.result();
-                    });
-                    return Future.succeededFuture();
-                });
-            });
-        }).otherwise(connectException -> {
-            logger.info("Connecting or creating a consumer failed with an exception: ", connectException);
-            logger.info("Reconnecting in {} ms...", RECONNECT_INTERVAL_MILLIS);
-
-            // As timer could be triggered by detach or disconnect we need to ensure here that timer runs only once
-            vertx.cancelTimer(reconnectTimerId);
-            reconnectTimerId = vertx.setTimer(RECONNECT_INTERVAL_MILLIS, timerId -> connectWithRetry());
-            return null;
+    /**
+     * Opens the connection of the tenant with its consumers and command client. Lost links are re-opened by the
+     * {@link Reconnector} of the connection.
+     */
+    private void connect(TenantConnection connection) {
+        final String tenant = connection.getTenant();
+        final String honoTenantId = connection.honoTenantId;
+        connection.reconnector = new Reconnector(tenant, connection.clientFactory, vertx,
+                new Backoff(reconnectMinDelayMillis, reconnectMaxDelayMillis), () -> metrics.increment("hono.agent.reconnect.retries"));
+        connection.reconnector.addLink(TELEMETRY_CONSUMER, () -> createTelemetryConsumer(connection).map(consumer -> {
+            logger.info("Consumer ready [tenant: {}, type: Telemetry]", honoTenantId);
+            connection.telemetryCredit.attach(consumer);
+            return consumer;
+        }), connection.telemetryCredit::detach);
+        connection.reconnector.addLink(EVENT_CONSUMER, () -> createEventConsumer(connection).map(consumer -> {
+            logger.info("Consumer ready [tenant: {}, type: Event]", honoTenantId);
+            connection.eventCredit.attach(consumer);
+            return consumer;
+        }), connection.eventCredit::detach);
+        connection.reconnector.addLink(COMMAND_CLIENT, () -> connection.clientFactory.getOrCreateCommandClient(honoTenantId).map(commandClient -> {
+            connection.commandDispatcher.attach(commandClient);
+            // Operations created while no command client was available are still pending
+            operationDrainer.drain(tenant);
+            return commandClient;
+        }), connection.commandDispatcher::detach);
+        // Added once, every disconnect must be reported exactly once to the reconnector
+        connection.clientFactory.addDisconnectListener(c -> onDisconnect(connection));
+        connection.reconnector.whenOpened().thenRun(() -> {
+            logger.info("Tenant {} is ready", tenant);
+            connection.ready.complete(null);
         });
+        connection.reconnector.start();
     }
 
-    Future<HonoConnection> clientFactoryConnect(DisconnectListener<HonoConnection> disconnectHandler) {
-        logger.info("Connecting to IoT Hub messaging endpoint...");
-        clientFactory.addDisconnectListener(disconnectHandler);
-        return clientFactory.connect();
-    }
-
-    Future<MessageConsumer> createTelemetryConsumer() {
+    Future<MessageConsumer> createTelemetryConsumer(TenantConnection connection) {
         logger.info("Creating telemetry consumer...");
-        return clientFactory.createTelemetryConsumer(honoTenantId, this::handleTelemetryMessage, this::onDetach);
+        return connection.clientFactory.createTelemetryConsumer(connection.honoTenantId, msg -> handleTelemetryMessage(connection, msg), v -> onDetach(connection, TELEMETRY_CONSUMER));
     }
 
-    Future<MessageConsumer> createEventConsumer() {
+    Future<MessageConsumer> createEventConsumer(TenantConnection connection) {
         logger.info("Creating Event consumer...");
-        return clientFactory.createEventConsumer(honoTenantId, this::handleEventMessage, this::onDetach);
+        return connection.clientFactory.createEventConsumer(connection.honoTenantId, msg -> handleEventMessage(connection, msg), v -> onDetach(connection, EVENT_CONSUMER));
     }
 
-    private void onDisconnect(final HonoConnection connection) {
-        logger.info("Client got disconnected. Reconnecting...");
-        connectWithRetry();
+    private void onDisconnect(TenantConnection connection) {
+        logger.info("Tenant {} got disconnected. Reconnecting...", connection.getTenant());
+        metrics.increment("hono.agent.reconnects");
+        connection.reconnector.connectionLost();
     }
 
-    private void onDetach(Void event) {
-        logger.info("Client got detached. Reconnecting...");
-        connectWithRetry();
+    private void onDetach(TenantConnection connection, String link) {
+        logger.info("{} of tenant {} got detached. Re-attaching...", link, connection.getTenant());
+        metrics.increment("hono.agent.reconnects");
+        connection.reconnector.linkLost(link);
     }
 
-
     /**
-     * /**
      * Handler method for a Message from Hono that was received as telemetry data.
      * <p>
-     * The tenant, the device, the payload, the content-type, the creation-time and the application properties will be printed to stdout.
+     * The payload is decoded on the {@link TelemetryLane}, which may shed the message once too much telemetry of the
+     * tenant is in the pipeline. Payloads are only logged for a sample of the messages.
      *
+     * @param connection The tenant connection the message was received on.
      * @param msg The message that was received.
      */
-    private void handleTelemetryMessage(final Message msg) {
-        subscriptionsService.runForEachTenant(() -> {
-            final String content = MessageHelper.getPayloadAsString(msg);
-            final String deviceId = MessageHelper.getDeviceId(msg);
-            JsonObject contentJson = MessageHelper.getJsonPayload(msg);
-            logger.info("Telemetry received for Device {} with Payload {}", deviceId, content);
-            ManagedObjectRepresentation mor = cumulocityClient.upsertHonoDevice(deviceId, deviceId, content, DateTime.now());
-            cumulocityClient.checkAgentAssignment(mor);
-            cumulocityClient.createEvent(mor, "hono_Telemetry", "Hono Telemetry Message", content, contentJson, DateTime.now());
-        });
+    private void handleTelemetryMessage(final TenantConnection connection, final Message msg) {
+        final long received = metrics.start();
+        final DecodedMessage message = DecodedMessage.of(msg, payloadDecoders);
+        final String deviceId = message.getDeviceId();
+        final int depth = connection.telemetryReceived();
+        telemetryLane.execute(connection.getTenant(), deviceId, depth, () -> {
+            CompletableFuture<?> written = null;
+            try {
+                written = subscriptionsService.callForTenant(connection.getTenant(), () -> {
+                    if (samplePayload())
+                        logger.info("Telemetry received for Device {} with Payload {}", deviceId, message.getPayloadAsString());
+                    ManagedObjectRepresentation mor = metrics.stage(AgentMetrics.STAGE_UPSERT, () -> cumulocityClient.upsertHonoDevice(deviceId, deviceId, DateTime.now()));
+                    if (mor == null) {
+                        logger.warn("Device {} could not be resolved, dropping message", deviceId);
+                        metrics.increment("hono.agent.devices.unresolved");
+                        return null;
+                    }
+                    metrics.stage(AgentMetrics.STAGE_ASSIGNMENT, () -> cumulocityClient.checkAgentAssignment(mor));
+                    final String deviceType = message.getApplicationProperty(DEVICE_TYPE_PROPERTY, String.class);
+                    // Only payloads that may become measurements are parsed, all others are passed through
+                    final MeasurementMapping mapping = measurementMapper.getMapping(deviceType);
+                    if (mapping != null) {
+                        final JsonObject contentJson = metrics.stage(AgentMetrics.STAGE_DECODE, message::getJson);
+                        // Aggregated values are written when their window is closed
+                        if (contentJson != null && telemetryAggregator.isEnabled() && telemetryAggregator.add(mor, mapping, contentJson, System.currentTimeMillis()))
+                            return null;
+                        MeasurementRepresentation measurement = measurementMapper.map(deviceType, mor, contentJson, DateTime.now());
+                        if (measurement != null)
+                            return cumulocityClient.createMeasurementAsync(measurement);
+                    }
+                    return createEvent(mor, "hono_Telemetry", "Hono Telemetry Message", message);
+                });
+            } finally {
+                whenWritten(written, connection::telemetryProcessed);
+            }
+        }, connection::telemetryProcessed);
+        metrics.recordStage(AgentMetrics.STAGE_RECEIVE, received);
     }
 
     /**
      * Handler method for a Message from Hono that was received as event data.
      * <p>
-     * The tenant, the device, the payload, the content-type, the creation-time and the application properties will be printed to stdout.
+     * The payload is decoded on the device executor, events are never shed. Payloads are only logged for a sample of
+     * the messages.
      *
+     * @param connection The tenant connection the message was received on.
      * @param msg The message that was received.
      */
-    private void handleEventMessage(final Message msg) {
-        subscriptionsService.runForEachTenant(() -> {
-            final String content = MessageHelper.getPayloadAsString(msg);
-            final String deviceId = MessageHelper.getDeviceId(msg);
-            final JsonObject jsonContent = MessageHelper.getJsonPayload(msg);
-
-            logger.info("Event received for Device {} with Payload {}", deviceId, content);
-            ManagedObjectRepresentation mor = cumulocityClient.upsertHonoDevice(deviceId, deviceId, content, DateTime.now());
-            cumulocityClient.checkAgentAssignment(mor);
-            cumulocityClient.createEvent(mor, "hono_Event", "Hono Event Message", content, jsonContent, DateTime.now());
+    private void handleEventMessage(final TenantConnection connection, final Message msg) {
+        final long received = metrics.start();
+        final DecodedMessage message = DecodedMessage.of(msg, payloadDecoders);
+        final String deviceId = message.getDeviceId();
+        connection.eventReceived();
+        if (connection.eventDuplicates != null && connection.eventDuplicates.isDuplicate(DuplicateFilter.fingerprint(message), System.currentTimeMillis())) {
+            logger.debug("Dropping duplicate event of Device {}", deviceId);
+            metrics.increment("hono.agent.dedup.dropped");
+            connection.eventProcessed();
+            return;
+        }
+        deviceExecutor.execute(connection.getTenant(), deviceId, () -> {
+            CompletableFuture<?> written = null;
+            try {
+                written = subscriptionsService.callForTenant(connection.getTenant(), () -> {
+                    if (samplePayload())
+                        logger.info("Event received for Device {} with Payload {}", deviceId, message.getPayloadAsString());
+                    ManagedObjectRepresentation mor = metrics.stage(AgentMetrics.STAGE_UPSERT, () -> cumulocityClient.upsertHonoDevice(deviceId, deviceId, DateTime.now()));
+                    if (mor == null) {
+                        logger.warn("Device {} could not be resolved, dropping message", deviceId);
+                        metrics.increment("hono.agent.devices.unresolved");
+                        return null;
+                    }
+                    metrics.stage(AgentMetrics.STAGE_ASSIGNMENT, () -> cumulocityClient.checkAgentAssignment(mor));
+                    return createEvent(mor, "hono_Event", "Hono Event Message", message);
+                });
+            } finally {
+                whenWritten(written, connection::eventProcessed);
+            }
         });
+        metrics.recordStage(AgentMetrics.STAGE_RECEIVE, received);
+    }
+
+    /**
+     * Queues an event with the payload as {@code hono_Content}. JSON objects are embedded as raw JSON, without building
+     * an object graph, payloads with a decoder as the decoded object, other text payloads as string and binary
+     * payloads as {@code {"base64": "..."}}.
+     */
+    private CompletableFuture<EventRepresentation> createEvent(ManagedObjectRepresentation mor, String eventType, String eventText, DecodedMessage message) {
+        if (message.hasDecoder()) {
+            JsonObject decoded = metrics.stage(AgentMetrics.STAGE_DECODE, message::getJson);
+            if (decoded != null)
+                return cumulocityClient.createEventAsync(mor, eventType, eventText, null, decoded, DateTime.now());
+            metrics.increment("hono.agent.decoder.failures");
+        }
+        if (metrics.stage(AgentMetrics.STAGE_DECODE, message::isJsonObject))
+            return cumulocityClient.createRawEventAsync(mor, eventType, eventText, message.getPayloadAsString(), DateTime.now());
+        if (!message.isText())
+            return cumulocityClient.createEventAsync(mor, eventType, eventText, null, message.getBase64Json(), DateTime.now());
+        return cumulocityClient.createEventAsync(mor, eventType, eventText, message.getPayloadAsString(), null, DateTime.now());
+    }
+
+    /**
+     * Returns true for every {@code hono.log.payloadSampleInterval}-th message, or always with debug logging enabled.
+     */
+    private boolean samplePayload() {
+        if (logger.isDebugEnabled())
+            return true;
+        return payloadSampleInterval > 0 && loggedMessages.incrementAndGet() % payloadSampleInterval == 0;
+    }
+
+    private static void whenWritten(CompletableFuture<?> written, Runnable action) {
+        if (written == null)
+            action.run();
+        else
+            written.whenComplete((result, e) -> action.run());
     }
 
-    public Future<Void> sendOneWayCommand( String deviceId, String contentType, String command, Buffer data, Map<String, Object> headers) {
+    /**
+     * Records whether all devices of the tenant were preloaded. An incomplete preload does not hold back readiness,
+     * devices that were not loaded are looked up on their first message, but it is reported in the health details.
+     */
+    private void preloaded(TenantConnection connection, boolean complete) {
+        if (!devicePreloader.isEnabled())
+            return;
+        connection.preloadIncomplete = !complete;
+        if (!complete) {
+            logger.warn("Devices of tenant {} were not all preloaded, the others are looked up on their first message", connection.getTenant());
+            metrics.increment("hono.agent.preload.incomplete");
+        }
+    }
+
+    private CommandDispatcher getCommandDispatcher(String tenant) {
+        TenantConnection connection = connections.get(tenant);
+        return connection != null ? connection.commandDispatcher : null;
+    }
+
+    public Future<Void> sendOneWayCommand(String tenant, String deviceId, String contentType, String command, Buffer data, Map<String, Object> headers, long timeoutMillis) {
         logger.info("Send command (one-way mode) to device '{}'", deviceId);
-        commandClient.setRequestTimeout(TimeUnit.SECONDS.toMillis(2)); // increase to avoid errors with 200 ms default timeout
-        if (contentType == null && headers == null) {
-            return commandClient.sendOneWayCommand(deviceId, command, data);
-        } else
+        CommandDispatcher dispatcher = getCommandDispatcher(tenant);
+        if (dispatcher == null)
+            return Future.failedFuture("No Hono connection available for tenant " + tenant);
+        final long start = metrics.start();
+        Future<Void> result = dispatcher.submit(commandClient -> {
+            if (contentType == null && headers == null)
+                return commandClient.sendOneWayCommand(deviceId, command, data);
             return commandClient.sendOneWayCommand(deviceId, contentType, command, data, headers);
+        }, timeoutMillis);
+        return timed(result, start);
     }
 
-    public Future<BufferResult> sendCommand(String deviceId, String contentType, String command, Buffer data, Map<String, Object> headers) {
+    public Future<BufferResult> sendCommand(String tenant, String deviceId, String contentType, String command, Buffer data, Map<String, Object> headers, long timeoutMillis) {
         logger.info("Send command to device '{}'", deviceId);
-        commandClient.setRequestTimeout(TimeUnit.SECONDS.toMillis(2)); // increase to avoid errors with 200 ms default timeout
-        if (contentType == null && headers == null) {
-            return commandClient.sendCommand(deviceId, command, data);
-        } else
+        CommandDispatcher dispatcher = getCommandDispatcher(tenant);
+        if (dispatcher == null)
+            return Future.failedFuture("No Hono connection available for tenant " + tenant);
+        final long start = metrics.start();
+        Future<BufferResult> result = dispatcher.submit(commandClient -> {
+            if (contentType == null && headers == null)
+                return commandClient.sendCommand(deviceId, command, data);
             return commandClient.sendCommand(deviceId, contentType, command, data, headers);
+        }, timeoutMillis);
+        return timed(result, start);
+    }
+
+    private <T> Future<T> timed(Future<T> commandResult, long start) {
+        // A Vert.x future only supports a single handler, so the caller gets a new future completed after timing
+        Future<T> timedResult = Future.future();
+        commandResult.setHandler(result -> {
+            metrics.recordStage(AgentMetrics.STAGE_COMMAND, start);
+            timedResult.handle(result);
+        });
+        return timedResult;
     }
 
 
@@ -0,0 +1,40 @@
+package honoagent.services;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reports the agent as ready once every subscribed tenant has opened its consumers and command client.
+ * <p>
+ * Until then the status is OUT_OF_SERVICE. A tenant that loses its connection later stays UP with the state
+ * {@code reconnecting}, as restarting the agent would not bring Hono back. A tenant without a complete Hono
+ * configuration is reported with the state {@code unconfigured} but does not hold back the other tenants. Tenants
+ * whose devices could not all be preloaded are listed in {@code preloadIncomplete}, which does not affect the status.
+ */
+@Component
+public class HonoAgentHealthIndicator implements HealthIndicator {
+
+    @Autowired
+    HonoAgent honoAgent;
+
+    @Override
+    public Health health() {
+        Health.Builder builder = Health.up();
+        boolean ready = true;
+        List<String> preloadIncomplete = new ArrayList<>();
+        for (TenantConnection connection : honoAgent.getConnections()) {
+            builder.withDetail(connection.getTenant(), connection.getState());
+            ready &= connection.ready.isDone() || connection.unconfigured;
+            if (connection.preloadIncomplete)
+                preloadIncomplete.add(connection.getTenant());
+        }
+        if (!preloadIncomplete.isEmpty())
+            builder.withDetail("preloadIncomplete", preloadIncomplete);
+        return (ready ? builder : builder.outOfService()).build();
+    }
+}
@@ -0,0 +1,86 @@
+package honoagent.services;
+
+import c8y.IsDevice;
+import com.cumulocity.microservice.subscription.service.MicroserviceSubscriptionsService;
+import com.cumulocity.model.DateTimeConverter;
+import com.cumulocity.model.idtype.GId;
+import com.cumulocity.rest.representation.inventory.ManagedObjectRepresentation;
+import com.cumulocity.sdk.client.SDKException;
+import com.cumulocity.sdk.client.inventory.InventoryApi;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Write-behind tracker for the {@code lastHonoUpdate} fragment of Hono devices.
+ * <p>
+ * Only the newest timestamp per device is kept in memory and written to the inventory on a fixed interval,
+ * so the number of inventory updates depends on the number of devices and not on the message rate.
+ */
+@Component
+public class LastSeenTracker {
+
+    final Logger logger = LoggerFactory.getLogger(LastSeenTracker.class);
+
+    @Autowired
+    InventoryApi inventoryApi;
+
+    @Autowired
+    MicroserviceSubscriptionsService subscriptionsService;
+
+    @Autowired
+    AgentMetrics metrics;
+
+    private final ConcurrentMap<String, ConcurrentMap<GId, DateTime>> pending = new ConcurrentHashMap<>();
+
+    public void record(String tenant, GId deviceId, DateTime updateTime) {
+        pending.computeIfAbsent(tenant, t -> new ConcurrentHashMap<>())
+                .merge(deviceId, updateTime, (current, update) -> update.isAfter(current) ? update : current);
+    }
+
+    @Scheduled(fixedDelayString = "${hono.lastSeen.flushIntervalMillis:30000}")
+    public void flush() {
+        for (Map.Entry<String, ConcurrentMap<GId, DateTime>> tenantEntry : pending.entrySet()) {
+            if (tenantEntry.getValue().isEmpty())
+                continue;
+            subscriptionsService.runForTenant(tenantEntry.getKey(), () -> flushTenant(tenantEntry.getValue()));
+        }
+    }
+
+    private void flushTenant(ConcurrentMap<GId, DateTime> devices) {
+        int written = 0;
+        for (Map.Entry<GId, DateTime> entry : devices.entrySet()) {
+            GId gid = entry.getKey();
+            DateTime updateTime = entry.getValue();
+            try {
+                ManagedObjectRepresentation mor = new ManagedObjectRepresentation();
+                mor.setId(gid);
+                mor.set(new IsDevice());
+                mor.set(DateTimeConverter.date2String(updateTime), "lastHonoUpdate");
+                metrics.rest("inventory.update", () -> inventoryApi.update(mor));
+                written++;
+            } catch (SDKException e) {
+                logger.error("Error on updating lastHonoUpdate of Device {}", gid.getValue(), e);
+                if (e.getHttpStatus() != 404)
+                    continue;
+            }
+            // Keep the entry if a newer timestamp arrived while we were writing
+            devices.remove(gid, updateTime);
+        }
+        logger.debug("Flushed lastHonoUpdate of {} devices", written);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        logger.info("Flushing pending lastHonoUpdate timestamps...");
+        flush();
+    }
+}
@@ -0,0 +1,130 @@
+package honoagent.services;
+
+import com.cumulocity.microservice.subscription.service.MicroserviceSubscriptionsService;
+import com.cumulocity.rest.representation.inventory.ManagedObjectRepresentation;
+import com.cumulocity.rest.representation.measurement.MeasurementRepresentation;
+import com.cumulocity.rest.representation.tenant.OptionRepresentation;
+import io.vertx.core.json.JsonObject;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maps telemetry payloads to measurements using the mappings stored in the tenant options of category
+ * {@code hono.mapping}.
+ * <p>
+ * The option with key {@code default} applies to all devices of the tenant, an option keyed by a device type applies
+ * to messages carrying that type in their {@code device_type} application property. Mappings are compiled once per
+ * tenant and kept until {@link #reload(String)} is called.
+ * <p>
+ * If the options cannot be read, the previous mappings of the tenant stay in use, or no mapping if there are none
+ * yet, and loading is retried after {@value #RETRY_MILLIS} ms. Only one thread loads the mappings of a tenant at a
+ * time, the others use the previous mappings meanwhile or wait for the first mappings of the tenant.
+ */
+@Component
+public class MeasurementMapper {
+
+    static final String MAPPING_CATEGORY = "hono.mapping";
+    static final String DEFAULT_MAPPING = "default";
+    private static final long RETRY_MILLIS = 10000;
+
+    final Logger logger = LoggerFactory.getLogger(MeasurementMapper.class);
+
+    @Autowired
+    CumulocityClient cumulocityClient;
+
+    @Autowired
+    MicroserviceSubscriptionsService subscriptionsService;
+
+    private final ConcurrentMap<String, Map<String, MeasurementMapping>> mappings = new ConcurrentHashMap<>();
+    // Tenants whose mappings have to be loaded again, with the time of the last failed attempt or 0
+    private final ConcurrentMap<String, Long> stale = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CompletableFuture<Map<String, MeasurementMapping>>> loading = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the mapping for the device type in the current tenant, falling back to the tenant default.
+     */
+    MeasurementMapping getMapping(String deviceType) {
+        Map<String, MeasurementMapping> tenantMappings = getMappings(subscriptionsService.getTenant());
+        MeasurementMapping mapping = deviceType != null ? tenantMappings.get(deviceType) : null;
+        return mapping != null ? mapping : tenantMappings.get(DEFAULT_MAPPING);
+    }
+
+    /**
+     * Converts the payload into a single measurement, or returns {@code null} if no mapping applies to it.
+     */
+    public MeasurementRepresentation map(String deviceType, ManagedObjectRepresentation source, JsonObject payload, DateTime time) {
+        if (payload == null)
+            return null;
+        MeasurementMapping mapping = getMapping(deviceType);
+        return mapping != null ? mapping.toMeasurement(source, payload, time) : null;
+    }
+
+    /**
+     * Loads the mappings of the tenant again on their next use. The current mappings are kept until then.
+     */
+    public void reload(String tenant) {
+        stale.put(tenant, 0L);
+    }
+
+    private Map<String, MeasurementMapping> getMappings(String tenant) {
+        Map<String, MeasurementMapping> current = mappings.get(tenant);
+        Long failedAt = stale.get(tenant);
+        if (current != null && failedAt == null)
+            return current;
+        if (failedAt != null && System.currentTimeMillis() - failedAt < RETRY_MILLIS)
+            return current != null ? current : Collections.emptyMap();
+        // Only one thread loads the mappings of a tenant, the others keep the previous mappings or wait for the first
+        CompletableFuture<Map<String, MeasurementMapping>> load = new CompletableFuture<>();
+        CompletableFuture<Map<String, MeasurementMapping>> running = loading.putIfAbsent(tenant, load);
+        if (running != null)
+            return current != null ? current : running.join();
+        try {
+            // Another thread may have finished loading between our check and taking over the load
+            Map<String, MeasurementMapping> loaded = mappings.get(tenant);
+            failedAt = stale.get(tenant);
+            if (loaded == null || failedAt != null && System.currentTimeMillis() - failedAt >= RETRY_MILLIS) {
+                loaded = load();
+                mappings.put(tenant, loaded);
+                if (failedAt != null)
+                    stale.remove(tenant, failedAt);
+            }
+            load.complete(loaded);
+            return loaded;
+        } catch (RuntimeException e) {
+            logger.error("Error on loading measurement mappings of tenant {}, will retry in {} ms: {}", tenant, RETRY_MILLIS, e.getMessage());
+            stale.put(tenant, System.currentTimeMillis());
+            Map<String, MeasurementMapping> previous = current != null ? current : Collections.emptyMap();
+            load.complete(previous);
+            return previous;
+        } finally {
+            loading.remove(tenant, load);
+        }
+    }
+
+    private Map<String, MeasurementMapping> load() {
+        List<OptionRepresentation> options = cumulocityClient.loadTenantOptions(MAPPING_CATEGORY);
+        if (options.isEmpty())
+            return Collections.emptyMap();
+        Map<String, MeasurementMapping> tenantMappings = new HashMap<>();
+        for (OptionRepresentation option : options) {
+            try {
+                tenantMappings.put(option.getKey(), MeasurementMapping.compile(option.getValue()));
+            } catch (Exception e) {
+                logger.error("Invalid measurement mapping '{}' in tenant {}: {}", option.getKey(), subscriptionsService.getTenant(), e.getMessage());
+            }
+        }
+        logger.info("Loaded {} measurement mappings for tenant {}", tenantMappings.size(), subscriptionsService.getTenant());
+        return tenantMappings;
+    }
+}
@@ -0,0 +1,204 @@
+package honoagent.services;
+
+import com.cumulocity.rest.representation.inventory.ManagedObjectRepresentation;
+import com.cumulocity.rest.representation.measurement.MeasurementRepresentation;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.joda.time.DateTime;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compiled set of rules mapping values of a JSON payload to measurement series.
+ * <p>
+ * The configuration is a JSON object like
+ * <pre>
+ * {
+ *   "type": "c8y_HonoMeasurement",
+ *   "rules": [
+ *     {"pointer": "/temp", "fragment": "c8y_Temperature", "series": "T", "unit": "C"},
+ *     {"pointer": "/battery/level", "fragment": "c8y_Battery", "series": "level", "unit": "%"}
+ *   ]
+ * }
+ * </pre>
+ * JSON pointers are split into their reference tokens once when the mapping is compiled, so applying a mapping only
+ * walks the payload.
+ */
+class MeasurementMapping {
+
+    static final String DEFAULT_TYPE = "c8y_HonoMeasurement";
+
+    private final String type;
+    private final Rule[] rules;
+
+    private MeasurementMapping(String type, Rule[] rules) {
+        this.type = type;
+        this.rules = rules;
+    }
+
+    static MeasurementMapping compile(String config) {
+        JsonObject json = new JsonObject(config);
+        JsonArray ruleConfigs = json.getJsonArray("rules", new JsonArray());
+        List<Rule> rules = new ArrayList<>(ruleConfigs.size());
+        for (int i = 0; i < ruleConfigs.size(); i++) {
+            JsonObject rule = ruleConfigs.getJsonObject(i);
+            String pointer = rule.getString("pointer");
+            String fragment = rule.getString("fragment");
+            if (pointer == null || fragment == null)
+                throw new IllegalArgumentException("Mapping rule " + i + " needs a 'pointer' and a 'fragment'");
+            rules.add(new Rule(parsePointer(pointer), fragment, rule.getString("series", fragment), rule.getString("unit")));
+        }
+        return new MeasurementMapping(json.getString("type", DEFAULT_TYPE), rules.toArray(new Rule[0]));
+    }
+
+    String getType() {
+        return type;
+    }
+
+    /**
+     * Passes every numeric value selected by a rule to the sink.
+     *
+     * @return the number of values found in the payload
+     */
+    int apply(JsonObject payload, ValueSink sink) {
+        int found = 0;
+        for (Rule rule : rules) {
+            Object value = rule.select(payload);
+            if (value instanceof Number) {
+                sink.accept(rule.fragment, rule.series, rule.unit, ((Number) value).doubleValue());
+                found++;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Passes every numeric value selected by a rule to the sink together with the index of the rule, so that callers
+     * can keep per-series state in arrays instead of maps.
+     *
+     * @return the number of values found in the payload
+     */
+    int apply(JsonObject payload, RuleSink sink) {
+        int found = 0;
+        for (int i = 0; i < rules.length; i++) {
+            Object value = rules[i].select(payload);
+            if (value instanceof Number) {
+                sink.accept(i, ((Number) value).doubleValue());
+                found++;
+            }
+        }
+        return found;
+    }
+
+    int getRuleCount() {
+        return rules.length;
+    }
+
+    String getFragment(int rule) {
+        return rules[rule].fragment;
+    }
+
+    String getSeries(int rule) {
+        return rules[rule].series;
+    }
+
+    String getUnit(int rule) {
+        return rules[rule].unit;
+    }
+
+    /**
+     * Creates a single measurement holding all series found in the payload, or {@code null} if none matched.
+     */
+    MeasurementRepresentation toMeasurement(ManagedObjectRepresentation source, JsonObject payload, DateTime time) {
+        Map<String, Map<String, Object>> fragments = new HashMap<>();
+        int found = apply(payload, (fragment, series, unit, value) -> {
+            Map<String, Object> seriesValue = new HashMap<>(4);
+            seriesValue.put("value", value);
+            if (unit != null)
+                seriesValue.put("unit", unit);
+            fragments.computeIfAbsent(fragment, f -> new HashMap<>()).put(series, seriesValue);
+        });
+        if (found == 0)
+            return null;
+        MeasurementRepresentation measurement = new MeasurementRepresentation();
+        measurement.setSource(source);
+        measurement.setDateTime(time);
+        measurement.setType(type);
+        for (Map.Entry<String, Map<String, Object>> fragment : fragments.entrySet()) {
+            measurement.set(fragment.getValue(), fragment.getKey());
+        }
+        return measurement;
+    }
+
+    private static Token[] parsePointer(String pointer) {
+        if (pointer.isEmpty())
+            return new Token[0];
+        if (pointer.charAt(0) != '/')
+            throw new IllegalArgumentException("JSON pointer must start with '/': " + pointer);
+        String[] parts = pointer.substring(1).split("/", -1);
+        Token[] tokens = new Token[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            tokens[i] = new Token(parts[i].replace("~1", "/").replace("~0", "~"));
+        }
+        return tokens;
+    }
+
+    interface ValueSink {
+        void accept(String fragment, String series, String unit, double value);
+    }
+
+    interface RuleSink {
+        void accept(int rule, double value);
+    }
+
+    private static final class Rule {
+        final Token[] path;
+        final String fragment;
+        final String series;
+        final String unit;
+
+        Rule(Token[] path, String fragment, String series, String unit) {
+            this.path = path;
+            this.fragment = fragment;
+            this.series = series;
+            this.unit = unit;
+        }
+
+        Object select(JsonObject payload) {
+            Object current = payload;
+            for (Token token : path) {
+                if (current instanceof JsonObject) {
+                    current = ((JsonObject) current).getValue(token.name);
+                } else if (current instanceof JsonArray && token.index >= 0 && token.index < ((JsonArray) current).size()) {
+                    current = ((JsonArray) current).getValue(token.index);
+                } else {
+                    return null;
+                }
+            }
+            return current;
+        }
+    }
+
+    private static final class Token {
+        final String name;
+        final int index;
+
+        Token(String name) {
+            this.name = name;
+            this.index = parseIndex(name);
+        }
+
+        private static int parseIndex(String name) {
+            if (name.isEmpty() || name.length() > 9)
+                return -1;
+            for (int i = 0; i < name.length(); i++) {
+                if (name.charAt(i) < '0' || name.charAt(i) > '9')
+                    return -1;
+            }
+            return Integer.parseInt(name);
+        }
+    }
+}
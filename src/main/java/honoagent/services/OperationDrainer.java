@@ -0,0 +1,158 @@
+package honoagent.services;
+
+import com.cumulocity.microservice.subscription.service.MicroserviceSubscriptionsService;
+import com.cumulocity.model.idtype.GId;
+import com.cumulocity.model.operation.OperationStatus;
+import com.cumulocity.rest.representation.inventory.ManagedObjectRepresentation;
+import com.cumulocity.rest.representation.operation.OperationCollectionRepresentation;
+import com.cumulocity.rest.representation.operation.OperationRepresentation;
+import com.cumulocity.sdk.client.devicecontrol.DeviceControlApi;
+import com.cumulocity.sdk.client.devicecontrol.OperationCollection;
+import com.cumulocity.sdk.client.devicecontrol.OperationFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executes the operations that stayed PENDING while the agent was not connected.
+ * <p>
+ * Pending operations are read one page at a time and their commands are sent with at most
+ * {@code hono.operations.drainConcurrency} commands in flight. Each operation is updated once, directly to its
+ * final status. Operations of devices owned by another replica are left to that replica and paged past. When the live
+ * members of a tenant change, its pending operations are drained again to pick up the devices of a failed replica.
+ */
+@Component
+public class OperationDrainer {
+
+    final Logger logger = LoggerFactory.getLogger(OperationDrainer.class);
+
+    @Autowired
+    CumulocityClient cumulocityClient;
+
+    @Autowired
+    DeviceControlApi deviceControlApi;
+
+    @Autowired
+    MicroserviceSubscriptionsService subscriptionsService;
+
+    @Autowired
+    AgentMetrics metrics;
+
+    @Autowired
+    DeviceOwnership deviceOwnership;
+
+    @Value("${hono.operations.drainConcurrency:32}")
+    private int concurrency;
+
+    @Value("${hono.operations.drainPageSize:500}")
+    private int pageSize;
+
+    private final Set<String> draining = ConcurrentHashMap.newKeySet();
+    private ExecutorService drainer;
+
+    @PostConstruct
+    public void start() {
+        AtomicInteger threadCount = new AtomicInteger();
+        drainer = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "operation-drainer-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        deviceOwnership.addMembershipListener(this::drain);
+    }
+
+    /**
+     * Drains the pending operations of the tenant in the background, unless they are already being drained.
+     */
+    public void drain(String tenant) {
+        if (!draining.add(tenant)) {
+            logger.info("Pending operations of tenant {} are already being drained", tenant);
+            return;
+        }
+        drainer.execute(() -> {
+            try {
+                subscriptionsService.runForTenant(tenant, this::drainTenant);
+            } catch (Exception e) {
+                logger.error("Error on draining pending operations of tenant {}", tenant, e);
+            } finally {
+                draining.remove(tenant);
+            }
+        });
+    }
+
+    private void drainTenant() {
+        ManagedObjectRepresentation agentMor = cumulocityClient.getAgentMor();
+        OperationFilter filter = new OperationFilter()
+                .byAgent(agentMor.getId().getValue())
+                .byStatus(OperationStatus.PENDING);
+        OperationCollection operations = deviceControlApi.getOperationsByFilter(filter);
+        Semaphore window = new Semaphore(concurrency);
+        Set<GId> dispatched = new HashSet<>();
+        long start = metrics.start();
+        int drained = 0;
+        int passDrained;
+        // Operations finished by other replicas shift the later pages, so an operation may move to a page that was
+        // already read. The pages are read again until a pass finds no new operation of this replica.
+        do {
+            passDrained = 0;
+            OperationCollectionRepresentation page = null;
+            int pageNumber = 1;
+            while (true) {
+                OperationCollectionRepresentation previous = page;
+                int number = pageNumber;
+                page = metrics.rest("operation.list",
+                        () -> previous == null ? operations.get(pageSize) : operations.getPage(previous, number, pageSize));
+                List<OperationRepresentation> ops = page != null ? page.getOperations() : null;
+                if (ops == null || ops.isEmpty())
+                    break;
+                int fresh = 0;
+                for (OperationRepresentation op : ops) {
+                    // Operations that are still listed because their update failed are skipped
+                    if (!dispatched.add(op.getId()) || !cumulocityClient.isOwnOperation(op))
+                        continue;
+                    window.acquireUninterruptibly();
+                    try {
+                        cumulocityClient.executeOperation(op, false).whenComplete((result, e) -> window.release());
+                    } catch (RuntimeException e) {
+                        logger.error("Error on executing Operation {}", op.getId().getValue(), e);
+                        window.release();
+                    }
+                    fresh++;
+                }
+                // Wait for the page to finish so that the next read does not return operations still in flight
+                window.acquireUninterruptibly(concurrency);
+                window.release(concurrency);
+                passDrained += fresh;
+                // Finished operations leave the filter and shift the later pages by as many operations, so the same
+                // page is read again. A page without new operations of this replica is moved past.
+                if (fresh == 0) {
+                    if (ops.size() < pageSize)
+                        break;
+                    pageNumber++;
+                }
+            }
+            drained += passDrained;
+        } while (passDrained > 0);
+        if (drained > 0)
+            logger.info("Drained {} pending operations in {} ms", drained, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        drainer.shutdownNow();
+    }
+}
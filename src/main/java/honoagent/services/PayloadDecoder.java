@@ -0,0 +1,19 @@
+package honoagent.services;
+
+import io.vertx.core.json.JsonObject;
+
+import java.io.IOException;
+
+/**
+ * Decodes a binary payload into the JSON object model used by the measurement mapping and the event content.
+ * <p>
+ * Decoders read the bytes in place, the array belongs to the AMQP message and must not be kept or modified.
+ */
+public interface PayloadDecoder {
+
+    /**
+     * @param contentType The full content type of the message, including parameters.
+     * @return The payload as JSON object, or {@code null} if its root is not an object.
+     */
+    JsonObject decode(byte[] bytes, int offset, int length, String contentType) throws IOException;
+}
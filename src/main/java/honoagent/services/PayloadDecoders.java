@@ -0,0 +1,73 @@
+package honoagent.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the {@link PayloadDecoder}s by media type, i.e. the content type of a message without parameters.
+ * <p>
+ * Built in are CBOR for {@code application/cbor}, the base64 passthrough for the media types listed in
+ * {@code hono.decoder.base64Types} (none by default) and, if {@code hono.decoder.protobuf.schema} names a {@code .proto} file, Protobuf
+ * for {@code application/x-protobuf} and {@code application/protobuf}. Payloads without a decoder are treated as
+ * JSON or text as before.
+ */
+@Component
+public class PayloadDecoders {
+
+    final Logger logger = LoggerFactory.getLogger(PayloadDecoders.class);
+
+    @Value("${hono.decoder.base64Types:}")
+    private String base64Types;
+
+    @Value("${hono.decoder.protobuf.schema:}")
+    private String protobufSchema;
+
+    @Value("${hono.decoder.protobuf.messageType:}")
+    private String protobufMessageType;
+
+    private final Map<String, PayloadDecoder> decoders = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() throws IOException {
+        register("application/cbor", new CborPayloadDecoder());
+        Base64PayloadDecoder base64 = new Base64PayloadDecoder();
+        for (String type : base64Types.split(",")) {
+            if (!type.trim().isEmpty())
+                register(type.trim(), base64);
+        }
+        if (!protobufSchema.isEmpty()) {
+            ProtobufPayloadDecoder protobuf = new ProtobufPayloadDecoder(new File(protobufSchema), protobufMessageType);
+            register("application/x-protobuf", protobuf);
+            register("application/protobuf", protobuf);
+            logger.info("Protobuf payloads are decoded with {}", protobufSchema);
+        }
+    }
+
+    /**
+     * Registers a decoder for a media type, replacing any decoder registered before.
+     */
+    public void register(String mediaType, PayloadDecoder decoder) {
+        decoders.put(mediaType.toLowerCase(Locale.ROOT), decoder);
+    }
+
+    /**
+     * Returns the decoder for the content type, or {@code null} if the payload is not decoded by a registered decoder.
+     */
+    PayloadDecoder forContentType(String contentType) {
+        if (contentType == null)
+            return null;
+        int parameters = contentType.indexOf(';');
+        String mediaType = (parameters < 0 ? contentType : contentType.substring(0, parameters)).trim();
+        PayloadDecoder decoder = decoders.get(mediaType);
+        return decoder != null ? decoder : decoders.get(mediaType.toLowerCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,68 @@
+package honoagent.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.dataformat.protobuf.ProtobufMapper;
+import com.fasterxml.jackson.dataformat.protobuf.schema.NativeProtobufSchema;
+import com.fasterxml.jackson.dataformat.protobuf.schema.ProtobufSchemaLoader;
+import io.vertx.core.json.JsonObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decodes Protobuf payloads with the message types of a {@code .proto} file. Fields are named as in the file.
+ * <p>
+ * The message type is taken from the {@code messageType} parameter of the content type, e.g.
+ * {@code application/x-protobuf; messageType=Reading}, or else the configured default type, or else the first type
+ * of the file. The readers of all types of the file are created up front, payloads of a type that is not in the file
+ * are not decoded.
+ */
+final class ProtobufPayloadDecoder implements PayloadDecoder {
+
+    private static final String MESSAGE_TYPE_PARAMETER = "messagetype=";
+
+    private final Map<String, ObjectReader> readers = new HashMap<>();
+    private final ObjectReader defaultReader;
+
+    ProtobufPayloadDecoder(File protoFile, String defaultType) throws IOException {
+        ProtobufMapper mapper = new ProtobufMapper();
+        NativeProtobufSchema schema = ProtobufSchemaLoader.std.loadNative(protoFile);
+        for (String type : schema.getMessageNames()) {
+            readers.put(type, mapper.readerFor(Map.class).with(schema.forType(type)));
+        }
+        defaultReader = defaultType.isEmpty() ? mapper.readerFor(Map.class).with(schema.forFirstType()) : readers.get(defaultType);
+        // Fails early on a wrong default type
+        if (defaultReader == null)
+            throw new IllegalArgumentException("Message type " + defaultType + " is not defined in " + protoFile);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public JsonObject decode(byte[] bytes, int offset, int length, String contentType) throws IOException {
+        String messageType = messageType(contentType);
+        ObjectReader reader = messageType != null ? readers.get(messageType) : defaultReader;
+        if (reader == null)
+            return null;
+        try {
+            return new JsonObject((Map<String, Object>) reader.readValue(bytes, offset, length));
+        } catch (JsonProcessingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the {@code messageType} parameter of the content type, or {@code null} if it has none.
+     */
+    private static String messageType(String contentType) {
+        int start = contentType != null ? contentType.toLowerCase(Locale.ROOT).indexOf(MESSAGE_TYPE_PARAMETER) : -1;
+        if (start < 0)
+            return null;
+        start += MESSAGE_TYPE_PARAMETER.length();
+        int end = contentType.indexOf(';', start);
+        return contentType.substring(start, end < 0 ? contentType.length() : end).trim();
+    }
+}
@@ -0,0 +1,66 @@
+package honoagent.services;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.svenson.JSONable;
+
+import java.io.IOException;
+
+/**
+ * Fragment value that is written into the JSON of a Cumulocity representation as is.
+ * <p>
+ * The SDK serializes representations with svenson, which writes {@link JSONable} values without looking into them.
+ * The JSON must therefore be valid, which {@link #isObject(byte[], int, int)} checks without building an object graph.
+ * <p>
+ * This saves parsing the payload into a map and serializing the map again, but the payload is still copied: it is
+ * decoded from the AMQP body into a String, and the SDK builds the complete request body as a String in memory before
+ * sending it. Large payloads therefore still cost about three times their size in short-lived memory.
+ */
+final class RawJson implements JSONable {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final String json;
+
+    RawJson(String json) {
+        this.json = json;
+    }
+
+    @Override
+    public String asJSON() {
+        return json;
+    }
+
+    @Override
+    public String toString() {
+        return json;
+    }
+
+    /**
+     * Returns true if the bytes are exactly one syntactically valid JSON object.
+     */
+    static boolean isObject(byte[] bytes, int offset, int length) {
+        try (JsonParser parser = JSON_FACTORY.createParser(bytes, offset, length)) {
+            return isObject(parser);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    static boolean isObject(String text) {
+        try (JsonParser parser = JSON_FACTORY.createParser(text)) {
+            return isObject(parser);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean isObject(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT)
+            return false;
+        // Tokenizes the whole object, syntax errors are thrown as exceptions
+        parser.skipChildren();
+        return parser.nextToken() == null;
+    }
+}
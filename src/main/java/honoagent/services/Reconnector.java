@@ -0,0 +1,207 @@
+package honoagent.services;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import org.eclipse.hono.client.ApplicationClientFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the AMQP connection of one tenant and its links open.
+ * <p>
+ * The reconnector is the only owner of the connection: disconnects and detached links are only recorded, a single
+ * attempt at a time then connects if the connection was lost and opens the links that are missing, one after the
+ * other in the order they were added. Links that are still open are kept. A failed attempt is retried after a
+ * {@link Backoff} delay, losses reported in the meantime are picked up by that retry.
+ * <p>
+ * All state is confined to a Vert.x context owned by the reconnector, the methods may be called from any thread.
+ */
+class Reconnector {
+
+    final Logger logger = LoggerFactory.getLogger(Reconnector.class);
+
+    private final String tenant;
+    private final ApplicationClientFactory clientFactory;
+    private final Context context;
+    private final Backoff backoff;
+    private final Runnable onRetry;
+
+    private final Map<String, Link> links = new LinkedHashMap<>();
+    private final Set<String> open = new HashSet<>();
+    private boolean connected;
+    private boolean attempting;
+    private boolean closed;
+    // Incremented on every connection loss so that results of links opened on the lost connection are ignored
+    private int generation;
+    private long timerId = -1;
+    private volatile boolean allOpen;
+    private final CompletableFuture<Void> opened = new CompletableFuture<>();
+
+    Reconnector(String tenant, ApplicationClientFactory clientFactory, Vertx vertx, Backoff backoff, Runnable onRetry) {
+        this.tenant = tenant;
+        this.clientFactory = clientFactory;
+        this.context = vertx.getOrCreateContext();
+        this.backoff = backoff;
+        this.onRetry = onRetry;
+    }
+
+    /**
+     * Adds a link that is opened after the connection has been established. Must be called before {@link #start()}.
+     *
+     * @param name Name of the link used in logs and in {@link #linkLost(String)}.
+     * @param opener Opens the link, the future succeeds once the link can be used.
+     * @param onLost Called on the reconnector's context when the link was lost.
+     */
+    void addLink(String name, Supplier<Future<?>> opener, Runnable onLost) {
+        links.put(name, new Link(opener, onLost));
+    }
+
+    void start() {
+        context.runOnContext(v -> ensureOpen());
+    }
+
+    /**
+     * Records that the connection and with it all links were lost.
+     */
+    void connectionLost() {
+        context.runOnContext(v -> {
+            if (closed)
+                return;
+            generation++;
+            connected = false;
+            allOpen = false;
+            for (String name : open) {
+                links.get(name).onLost.run();
+            }
+            open.clear();
+            ensureOpen();
+        });
+    }
+
+    /**
+     * Records that a single link was lost while the connection may still be open.
+     */
+    void linkLost(String name) {
+        context.runOnContext(v -> {
+            if (closed || !open.remove(name))
+                return;
+            allOpen = false;
+            links.get(name).onLost.run();
+            ensureOpen();
+        });
+    }
+
+    /**
+     * Returns a future that completes once all links have been opened for the first time.
+     */
+    CompletableFuture<Void> whenOpened() {
+        return opened;
+    }
+
+    boolean isOpen() {
+        return allOpen;
+    }
+
+    void close() {
+        context.runOnContext(v -> {
+            closed = true;
+            if (timerId != -1)
+                context.owner().cancelTimer(timerId);
+        });
+    }
+
+    private void ensureOpen() {
+        // A pending retry or a running attempt will also cover any loss recorded since it was started
+        if (closed || attempting || timerId != -1)
+            return;
+        if (connected && open.size() == links.size())
+            return;
+        attempting = true;
+        if (connected) {
+            openNext();
+            return;
+        }
+        logger.info("Connecting tenant {} to IoT Hub messaging endpoint...", tenant);
+        final int attemptGeneration = generation;
+        clientFactory.connect().setHandler(result -> context.runOnContext(v -> {
+            if (!isCurrent(attemptGeneration, "connection", result))
+                return;
+            connected = true;
+            logger.info("Tenant {} connected to IoT Hub messaging endpoint", tenant);
+            openNext();
+        }));
+    }
+
+    private void openNext() {
+        String name = links.keySet().stream().filter(link -> !open.contains(link)).findFirst().orElse(null);
+        if (name == null) {
+            attempting = false;
+            if (backoff.getAttempts() > 0)
+                logger.info("All links of tenant {} are open again after {} retries", tenant, backoff.getAttempts());
+            backoff.reset();
+            allOpen = true;
+            opened.complete(null);
+            return;
+        }
+        final int attemptGeneration = generation;
+        Future<?> opening;
+        try {
+            opening = links.get(name).opener.get();
+        } catch (RuntimeException e) {
+            opening = Future.failedFuture(e);
+        }
+        opening.setHandler(result -> context.runOnContext(v -> {
+            if (!isCurrent(attemptGeneration, name, result))
+                return;
+            open.add(name);
+            openNext();
+        }));
+    }
+
+    /**
+     * Ends the attempt unless the step succeeded on the current connection, and schedules the next attempt if needed.
+     */
+    private boolean isCurrent(int attemptGeneration, String step, AsyncResult<?> result) {
+        if (closed) {
+            attempting = false;
+            return false;
+        }
+        if (attemptGeneration != generation) {
+            // The connection was lost while the step was running, start over with a new connection
+            attempting = false;
+            ensureOpen();
+            return false;
+        }
+        if (result.failed()) {
+            attempting = false;
+            long delay = backoff.nextDelayMillis();
+            logger.warn("Opening {} of tenant {} failed, retry {} in {} ms: {}", step, tenant, backoff.getAttempts(), delay, String.valueOf(result.cause()));
+            onRetry.run();
+            timerId = context.owner().setTimer(delay, id -> {
+                timerId = -1;
+                ensureOpen();
+            });
+            return false;
+        }
+        return true;
+    }
+
+    private static final class Link {
+        final Supplier<Future<?>> opener;
+        final Runnable onLost;
+
+        Link(Supplier<Future<?>> opener, Runnable onLost) {
+            this.opener = opener;
+            this.onLost = onLost;
+        }
+    }
+}
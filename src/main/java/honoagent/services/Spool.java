@@ -0,0 +1,340 @@
+package honoagent.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, segmented record log on local disk.
+ * <p>
+ * Records are appended to memory-mapped segment files of a fixed size. Every record is stored as
+ * {@code [int length][int crc32][payload]}, a length of 0 marks the end of the written part of a segment. The read
+ * position is kept in a separate cursor file and fully consumed segments are deleted. When the number of segments
+ * exceeds the configured maximum the oldest segment is dropped.
+ * <p>
+ * This class has no dependencies on Spring or Cumulocity so that it can be used and tested on its own.
+ */
+class Spool {
+
+    final Logger logger = LoggerFactory.getLogger(Spool.class);
+
+    private static final int MAGIC = 0x48535031; // "HSP1"
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CURSOR_FILE = "cursor";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final CRC32 crc = new CRC32();
+
+    private Segment writeSegment;
+    private long readSequence;
+    private int readPosition = HEADER_SIZE;
+
+    private long appended;
+    private long replayed;
+    private long dropped;
+    private long corrupted;
+    private long pendingRecords;
+
+    Spool(Path directory, int segmentSize, int maxSegments) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(2, maxSegments);
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    /**
+     * Appends a record, dropping the oldest segment if the size limit is reached.
+     *
+     * @return false if the record is larger than a segment
+     */
+    synchronized boolean append(byte[] payload) throws IOException {
+        if (payload.length + RECORD_HEADER_SIZE > segmentSize - HEADER_SIZE)
+            return false;
+        MappedByteBuffer buffer = writeSegment.buffer;
+        if (buffer.position() + RECORD_HEADER_SIZE + payload.length > segmentSize) {
+            roll();
+            buffer = writeSegment.buffer;
+        }
+        crc.reset();
+        crc.update(payload, 0, payload.length);
+        int position = buffer.position();
+        buffer.putInt(position + 4, (int) crc.getValue());
+        buffer.position(position + RECORD_HEADER_SIZE);
+        buffer.put(payload);
+        // Write the length last so a reader never sees a partially written record
+        buffer.putInt(position, payload.length);
+        appended++;
+        pendingRecords++;
+        return true;
+    }
+
+    /**
+     * Passes records to the consumer in append order until it returns false, the spool is empty or {@code max}
+     * records have been consumed. Consumed records are removed from the spool.
+     * <p>
+     * The lock is not held while the consumer runs, so appending is not blocked by a slow consumer. Only one thread
+     * may drain at a time.
+     *
+     * @return the number of consumed records
+     */
+    int drain(int max, Predicate<byte[]> consumer) throws IOException {
+        int consumed = 0;
+        try {
+            while (consumed < max) {
+                byte[] payload;
+                long sequence;
+                int position;
+                synchronized (this) {
+                    payload = next();
+                    sequence = readSequence;
+                    position = readPosition;
+                }
+                if (payload == null || !consumer.test(payload))
+                    break;
+                synchronized (this) {
+                    // The segment may have been dropped by a concurrent append while the consumer was running
+                    if (sequence == readSequence && position == readPosition) {
+                        readPosition += RECORD_HEADER_SIZE + payload.length;
+                        pendingRecords--;
+                    }
+                    replayed++;
+                }
+                consumed++;
+            }
+        } finally {
+            if (consumed > 0) {
+                synchronized (this) {
+                    writeCursor();
+                }
+            }
+        }
+        return consumed;
+    }
+
+    synchronized void force() {
+        if (writeSegment != null)
+            writeSegment.buffer.force();
+    }
+
+    synchronized void close() throws IOException {
+        force();
+        writeCursor();
+        for (Segment segment : segments.values()) {
+            segment.channel.close();
+        }
+        segments.clear();
+    }
+
+    synchronized long getAppendedCount() {
+        return appended;
+    }
+
+    synchronized long getReplayedCount() {
+        return replayed;
+    }
+
+    synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    synchronized long getCorruptedCount() {
+        return corrupted;
+    }
+
+    synchronized long getPendingCount() {
+        return pendingRecords;
+    }
+
+    synchronized long getSizeBytes() {
+        return (long) segments.size() * segmentSize;
+    }
+
+    private byte[] next() throws IOException {
+        while (true) {
+            Segment segment = segments.get(readSequence);
+            if (segment == null) {
+                if (segments.isEmpty() || readSequence >= segments.lastKey())
+                    return null;
+                readSequence = segments.ceilingKey(readSequence);
+                readPosition = HEADER_SIZE;
+                continue;
+            }
+            ByteBuffer buffer = segment.buffer;
+            int length = readPosition + RECORD_HEADER_SIZE <= segmentSize ? buffer.getInt(readPosition) : 0;
+            if (length > 0 && readPosition + RECORD_HEADER_SIZE + length <= segmentSize) {
+                byte[] payload = new byte[length];
+                ByteBuffer view = buffer.duplicate();
+                view.position(readPosition + RECORD_HEADER_SIZE);
+                view.get(payload);
+                crc.reset();
+                crc.update(payload, 0, payload.length);
+                if ((int) crc.getValue() == buffer.getInt(readPosition + 4))
+                    return payload;
+                logger.error("Corrupted record in spool segment {} at position {}, skipping rest of segment", segment.sequence, readPosition);
+                corrupted++;
+            } else if (length != 0) {
+                logger.error("Invalid record length {} in spool segment {}, skipping rest of segment", length, segment.sequence);
+                corrupted++;
+            }
+            if (segment == writeSegment)
+                return null;
+            // Segment is fully consumed, continue with the next one
+            deleteSegment(segment);
+            readSequence = segment.sequence + 1;
+            readPosition = HEADER_SIZE;
+        }
+    }
+
+    private void roll() throws IOException {
+        writeSegment.buffer.force();
+        long sequence = writeSegment.sequence + 1;
+        while (segments.size() >= maxSegments) {
+            Segment oldest = segments.firstEntry().getValue();
+            long lost = countRecords(oldest, oldest.sequence == readSequence ? readPosition : HEADER_SIZE);
+            logger.warn("Spool is full, dropping segment {} with {} records", oldest.sequence, lost);
+            dropped += lost;
+            pendingRecords -= lost;
+            deleteSegment(oldest);
+            if (readSequence <= oldest.sequence) {
+                readSequence = oldest.sequence + 1;
+                readPosition = HEADER_SIZE;
+            }
+        }
+        writeSegment = openSegment(sequence, true);
+    }
+
+    private void recover() throws IOException {
+        List<Long> sequences = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    sequences.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring unknown file {} in spool directory", name);
+                }
+            }
+        }
+        for (Long sequence : sequences) {
+            Segment segment = openSegment(sequence, false);
+            if (segment.buffer.getInt(0) != MAGIC) {
+                logger.error("Spool segment {} has an invalid header, deleting it", sequence);
+                deleteSegment(segment);
+            }
+        }
+        readCursor();
+        if (segments.isEmpty()) {
+            writeSegment = openSegment(readSequence, true);
+            readPosition = HEADER_SIZE;
+            return;
+        }
+        writeSegment = segments.lastEntry().getValue();
+        writeSegment.buffer.position(scanEnd(writeSegment));
+        if (!segments.containsKey(readSequence)) {
+            readSequence = segments.firstKey();
+            readPosition = HEADER_SIZE;
+        }
+        for (Segment segment : segments.values()) {
+            pendingRecords += countRecords(segment, segment.sequence == readSequence ? readPosition : HEADER_SIZE);
+        }
+        logger.info("Recovered spool with {} segments and {} pending records", segments.size(), pendingRecords);
+    }
+
+    private int scanEnd(Segment segment) {
+        int position = HEADER_SIZE;
+        ByteBuffer buffer = segment.buffer;
+        while (position + RECORD_HEADER_SIZE <= segmentSize) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER_SIZE + length > segmentSize)
+                break;
+            position += RECORD_HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    private long countRecords(Segment segment, int from) {
+        long count = 0;
+        int position = from;
+        int end = segment == writeSegment ? segment.buffer.position() : segmentSize;
+        while (position + RECORD_HEADER_SIZE <= end) {
+            int length = segment.buffer.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER_SIZE + length > end)
+                break;
+            position += RECORD_HEADER_SIZE + length;
+            count++;
+        }
+        return count;
+    }
+
+    private Segment openSegment(long sequence, boolean create) throws IOException {
+        Path file = directory.resolve(String.format("%016d%s", sequence, SEGMENT_SUFFIX));
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        if (create) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, 1);
+            buffer.position(HEADER_SIZE);
+        }
+        Segment segment = new Segment(sequence, channel, buffer);
+        segments.put(sequence, segment);
+        return segment;
+    }
+
+    private void deleteSegment(Segment segment) throws IOException {
+        segments.remove(segment.sequence);
+        segment.channel.close();
+        Files.deleteIfExists(directory.resolve(String.format("%016d%s", segment.sequence, SEGMENT_SUFFIX)));
+    }
+
+    private void readCursor() throws IOException {
+        Path file = directory.resolve(CURSOR_FILE);
+        if (!Files.exists(file))
+            return;
+        ByteBuffer cursor = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (cursor.remaining() >= 12) {
+            readSequence = cursor.getLong();
+            readPosition = cursor.getInt();
+        }
+    }
+
+    private void writeCursor() throws IOException {
+        ByteBuffer cursor = ByteBuffer.allocate(12);
+        cursor.putLong(readSequence);
+        cursor.putInt(readPosition);
+        Path tmp = directory.resolve(CURSOR_FILE + ".tmp");
+        Files.write(tmp, cursor.array());
+        Files.move(tmp, directory.resolve(CURSOR_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static final class Segment {
+        final long sequence;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+
+        Segment(long sequence, FileChannel channel, MappedByteBuffer buffer) {
+            this.sequence = sequence;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+}
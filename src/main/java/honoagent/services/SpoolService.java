@@ -0,0 +1,288 @@
+package honoagent.services;
+
+import com.cumulocity.microservice.subscription.service.MicroserviceSubscriptionsService;
+import com.cumulocity.model.JSONBase;
+import com.cumulocity.rest.representation.event.EventRepresentation;
+import com.cumulocity.rest.representation.measurement.MeasurementRepresentation;
+import com.cumulocity.sdk.client.SDKException;
+import com.cumulocity.sdk.client.event.EventApi;
+import com.cumulocity.sdk.client.measurement.MeasurementApi;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps events and measurements that could not be written to Cumulocity in a local {@link Spool} and replays them
+ * once the platform is reachable again.
+ * <p>
+ * The drainer replays at most {@code hono.spool.drainRatePerSecond} records per second and stops at the first failing
+ * record until the next run, so replaying does not overload a platform that just recovered.
+ * <p>
+ * Records of a tenant without subscription are moved to the end of the spool so they do not hold back the records of
+ * other tenants. They are kept for {@code hono.spool.unsubscribedRetentionMinutes}, e.g. while the subscriptions are
+ * not loaded yet after a restart, and dropped once the tenant has been unsubscribed for longer.
+ * <p>
+ * Appended records are forced to disk every {@code hono.spool.forceIntervalMillis}, with 0 every record is forced
+ * before it is reported as stored. Records appended since the last force may be lost if the host crashes.
+ */
+@Component
+public class SpoolService {
+
+    final Logger logger = LoggerFactory.getLogger(SpoolService.class);
+
+    private static final char KIND_EVENT = 'E';
+    private static final char KIND_MEASUREMENT = 'M';
+
+    @Autowired
+    EventApi eventApi;
+
+    @Autowired
+    MeasurementApi measurementApi;
+
+    @Autowired
+    MicroserviceSubscriptionsService subscriptionsService;
+
+    @Autowired
+    AgentMetrics metrics;
+
+    @Value("${hono.spool.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hono.spool.directory:${java.io.tmpdir}/hono-spool}")
+    private String directory;
+
+    @Value("${hono.spool.segmentSizeBytes:16777216}")
+    private int segmentSizeBytes;
+
+    @Value("${hono.spool.maxSizeBytes:1073741824}")
+    private long maxSizeBytes;
+
+    @Value("${hono.spool.drainRatePerSecond:200}")
+    private int drainRatePerSecond;
+
+    @Value("${hono.spool.forceIntervalMillis:1000}")
+    private long forceIntervalMillis;
+
+    @Value("${hono.spool.unsubscribedRetentionMinutes:60}")
+    private long unsubscribedRetentionMinutes;
+
+    private Spool spool;
+    private ScheduledExecutorService drainer;
+    // Time since when a tenant of spooled records has no subscription
+    private final ConcurrentMap<String, Long> unsubscribedSince = new ConcurrentHashMap<>();
+
+    /**
+     * Writes a spooled record to Cumulocity. Separated from the SDK so the drainer can run against a stub.
+     */
+    interface Sink {
+        void write(String tenant, char kind, String json) throws Exception;
+    }
+
+    /**
+     * Thrown by a {@link Sink} if the tenant of a record has no subscription.
+     */
+    static class UnsubscribedTenantException extends RuntimeException {
+        UnsubscribedTenantException(String tenant) {
+            super("No subscription for tenant " + tenant);
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled)
+            return;
+        try {
+            spool = new Spool(Paths.get(directory), segmentSizeBytes, (int) (maxSizeBytes / segmentSizeBytes));
+        } catch (IOException e) {
+            logger.error("Spool directory {} is not usable, spooling is disabled", directory, e);
+            return;
+        }
+        drainer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "spool-drainer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        metrics.gauge("hono.agent.spool.pending", this, SpoolService::getPendingCount);
+        metrics.gauge("hono.agent.spool.bytes", this, SpoolService::getSizeBytes);
+        metrics.gauge("hono.agent.spool.appended", this, SpoolService::getAppendedCount);
+        metrics.gauge("hono.agent.spool.replayed", this, SpoolService::getReplayedCount);
+        metrics.gauge("hono.agent.spool.dropped", this, SpoolService::getDroppedCount);
+        drainer.scheduleWithFixedDelay(() -> drain(this::writeToPlatform), 1, 1, TimeUnit.SECONDS);
+        if (forceIntervalMillis > 0)
+            drainer.scheduleWithFixedDelay(spool::force, forceIntervalMillis, forceIntervalMillis, TimeUnit.MILLISECONDS);
+        logger.info("Spool started in {} with {} pending records", directory, spool.getPendingCount());
+    }
+
+    public boolean isEnabled() {
+        return spool != null;
+    }
+
+    public boolean storeEvent(String tenant, EventRepresentation event) {
+        return store(tenant, KIND_EVENT, event);
+    }
+
+    public boolean storeMeasurement(String tenant, MeasurementRepresentation measurement) {
+        return store(tenant, KIND_MEASUREMENT, measurement);
+    }
+
+    public long getPendingCount() {
+        return spool != null ? spool.getPendingCount() : 0;
+    }
+
+    public long getAppendedCount() {
+        return spool != null ? spool.getAppendedCount() : 0;
+    }
+
+    public long getReplayedCount() {
+        return spool != null ? spool.getReplayedCount() : 0;
+    }
+
+    public long getDroppedCount() {
+        return spool != null ? spool.getDroppedCount() : 0;
+    }
+
+    public long getSizeBytes() {
+        return spool != null ? spool.getSizeBytes() : 0;
+    }
+
+    private boolean store(String tenant, char kind, Object representation) {
+        if (spool == null)
+            return false;
+        String record = kind + tenant + '\n' + JSONBase.getJSONGenerator().forValue(representation);
+        try {
+            if (spool.append(record.getBytes(StandardCharsets.UTF_8))) {
+                if (forceIntervalMillis <= 0)
+                    spool.force();
+                return true;
+            }
+            logger.error("Record of {} bytes is too large for the spool", record.length());
+        } catch (IOException e) {
+            logger.error("Error on writing to spool", e);
+        }
+        return false;
+    }
+
+    /**
+     * Replays up to one second's worth of records into the sink.
+     *
+     * @return the number of replayed records
+     */
+    int drain(Sink sink) {
+        long pending = spool.getPendingCount();
+        if (pending == 0)
+            return 0;
+        Set<String> unsubscribed = new HashSet<>();
+        int[] requeued = new int[1];
+        int[] seen = new int[1];
+        try {
+            int consumed = spool.drain(drainRatePerSecond, record -> {
+                String value = new String(record, StandardCharsets.UTF_8);
+                int newline = value.indexOf('\n');
+                String tenant = value.substring(1, newline);
+                // Stops at the records requeued by this run
+                if (seen[0]++ >= pending)
+                    return false;
+                try {
+                    if (unsubscribed.contains(tenant))
+                        throw new UnsubscribedTenantException(tenant);
+                    sink.write(tenant, value.charAt(0), value.substring(newline + 1));
+                    unsubscribedSince.remove(tenant);
+                    return true;
+                } catch (UnsubscribedTenantException e) {
+                    unsubscribed.add(tenant);
+                    return requeue(tenant, record, requeued);
+                } catch (Exception e) {
+                    if (!isRetryable(e)) {
+                        logger.error("Dropping spooled record rejected by the platform: {}", e.getMessage());
+                        return true;
+                    }
+                    logger.info("Replaying spooled records failed, will retry later: {}", e.getMessage());
+                    return false;
+                }
+            });
+            int replayed = consumed - requeued[0];
+            if (replayed > 0)
+                logger.info("Replayed {} spooled records, {} pending", replayed, spool.getPendingCount());
+            if (!unsubscribed.isEmpty())
+                logger.info("Requeued {} spooled records of unsubscribed tenants {}", requeued[0], unsubscribed);
+            return replayed;
+        } catch (Exception e) {
+            logger.error("Error on draining spool", e);
+            return 0;
+        }
+    }
+
+    /**
+     * Moves a record of an unsubscribed tenant to the end of the spool, or drops it once the tenant has been
+     * unsubscribed for longer than the retention.
+     *
+     * @return true if the record can be removed from its current position
+     */
+    private boolean requeue(String tenant, byte[] record, int[] requeued) {
+        long since = unsubscribedSince.computeIfAbsent(tenant, t -> System.currentTimeMillis());
+        if (System.currentTimeMillis() - since > TimeUnit.MINUTES.toMillis(unsubscribedRetentionMinutes)) {
+            logger.error("Dropping spooled record of tenant {} without subscription", tenant);
+            return true;
+        }
+        try {
+            if (!spool.append(record))
+                return false;
+        } catch (IOException e) {
+            logger.error("Error on requeuing spooled record of tenant {}", tenant, e);
+            return false;
+        }
+        requeued[0]++;
+        return true;
+    }
+
+    void writeToPlatform(String tenant, char kind, String json) {
+        // runForTenant silently skips unknown tenants, which would count the record as replayed
+        if (!subscriptionsService.getCredentials(tenant).isPresent())
+            throw new UnsubscribedTenantException(tenant);
+        subscriptionsService.runForTenant(tenant, () -> {
+            if (kind == KIND_EVENT) {
+                eventApi.create(JSONBase.getJSONParser().parse(EventRepresentation.class, json));
+            } else {
+                measurementApi.create(JSONBase.getJSONParser().parse(MeasurementRepresentation.class, json));
+            }
+        });
+    }
+
+    /**
+     * Returns true if a failed write should be spooled and retried instead of being reported as failed.
+     */
+    static boolean isRetryable(Throwable e) {
+        if (e instanceof SDKException) {
+            int status = ((SDKException) e).getHttpStatus();
+            return status == 0 || status == 429 || status >= 500;
+        }
+        return true;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (spool == null)
+            return;
+        drainer.shutdownNow();
+        try {
+            spool.close();
+        } catch (IOException e) {
+            logger.error("Error on closing spool", e);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package honoagent.services;
+
+import com.cumulocity.microservice.subscription.service.MicroserviceSubscriptionsService;
+import com.cumulocity.model.idtype.GId;
+import com.cumulocity.rest.representation.inventory.ManagedObjectRepresentation;
+import com.cumulocity.rest.representation.measurement.MeasurementRepresentation;
+import io.vertx.core.json.JsonObject;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downsamples high-frequency telemetry into one measurement per device and window.
+ * <p>
+ * Values selected by the {@link MeasurementMapping} of a device are collected in tumbling windows of
+ * {@code hono.aggregation.windowSeconds}, aligned to the epoch so that the windows of all devices share their
+ * boundaries. The state of a device is a set of primitive arrays indexed by the mapping rule, adding a sample does not
+ * allocate. When a window is closed, either by the first sample of the next window or by the periodic flush, a single
+ * measurement is created holding for each series the average as the series itself and {@code _min}, {@code _max},
+ * {@code _last} and {@code _count} series next to it.
+ * <p>
+ * Samples are acknowledged when they are added to a window, the values of open windows are lost if the agent stops
+ * without shutting down.
+ */
+@Component
+public class TelemetryAggregator {
+
+    final Logger logger = LoggerFactory.getLogger(TelemetryAggregator.class);
+
+    @Autowired
+    CumulocityClient cumulocityClient;
+
+    @Autowired
+    MicroserviceSubscriptionsService subscriptionsService;
+
+    @Autowired
+    AgentMetrics metrics;
+
+    @Value("${hono.aggregation.enabled:false}")
+    private boolean enabled;
+
+    @Value("${hono.aggregation.windowSeconds:60}")
+    private long windowSeconds;
+
+    @Value("${hono.aggregation.maxDevices:100000}")
+    private int maxDevices;
+
+    private final ConcurrentMap<String, ConcurrentMap<GId, DeviceWindow>> windows = new ConcurrentHashMap<>();
+    private final AtomicInteger deviceCount = new AtomicInteger();
+    private long windowMillis;
+
+    @PostConstruct
+    public void init() {
+        windowMillis = TimeUnit.SECONDS.toMillis(windowSeconds);
+        metrics.gauge("hono.agent.aggregation.devices", deviceCount, AtomicInteger::get);
+        if (enabled)
+            logger.info("Telemetry is aggregated in windows of {} s", windowSeconds);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Adds the values of the payload to the current window of the device. Must be called in the context of the tenant
+     * and, for the same device, by one thread at a time.
+     *
+     * @return {@code false} if the payload was not aggregated and has to be written as it is, i.e. no rule of the
+     * mapping matched or the limit of aggregated devices has been reached.
+     */
+    boolean add(ManagedObjectRepresentation source, MeasurementMapping mapping, JsonObject payload, long now) {
+        ConcurrentMap<GId, DeviceWindow> tenantWindows = windows.computeIfAbsent(subscriptionsService.getTenant(), t -> new ConcurrentHashMap<>());
+        MeasurementRepresentation closed;
+        int found;
+        while (true) {
+            DeviceWindow window = tenantWindows.get(source.getId());
+            if (window == null) {
+                if (deviceCount.get() >= maxDevices) {
+                    metrics.increment("hono.agent.aggregation.overflow");
+                    return false;
+                }
+                window = tenantWindows.computeIfAbsent(source.getId(), id -> {
+                    deviceCount.incrementAndGet();
+                    return new DeviceWindow(id);
+                });
+            }
+            synchronized (window) {
+                // The flush may have removed the idle window after it was looked up
+                if (window.removed)
+                    continue;
+                closed = window.roll(mapping, now - now % windowMillis);
+                found = mapping.apply(payload, window);
+                window.lastSampleAt = now;
+            }
+            break;
+        }
+        if (closed != null)
+            emit(closed);
+        return found > 0;
+    }
+
+    /**
+     * Closes the windows that are over but got no sample of the next window, and forgets devices that were idle for
+     * a whole window.
+     */
+    @Scheduled(fixedDelayString = "${hono.aggregation.flushIntervalMillis:1000}")
+    public void flush() {
+        if (enabled)
+            flush(System.currentTimeMillis(), false);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (!enabled)
+            return;
+        logger.info("Flushing open aggregation windows...");
+        flush(System.currentTimeMillis(), true);
+    }
+
+    private void flush(long now, boolean all) {
+        for (Map.Entry<String, ConcurrentMap<GId, DeviceWindow>> tenantEntry : windows.entrySet()) {
+            List<MeasurementRepresentation> closed = new ArrayList<>();
+            for (Iterator<DeviceWindow> it = tenantEntry.getValue().values().iterator(); it.hasNext(); ) {
+                DeviceWindow window = it.next();
+                synchronized (window) {
+                    if (all || now >= window.windowStart + windowMillis) {
+                        MeasurementRepresentation measurement = window.close();
+                        if (measurement != null)
+                            closed.add(measurement);
+                    }
+                    if (window.isEmpty() && now - window.lastSampleAt > 2 * windowMillis) {
+                        window.removed = true;
+                        it.remove();
+                        deviceCount.decrementAndGet();
+                    }
+                }
+            }
+            if (!closed.isEmpty())
+                subscriptionsService.runForTenant(tenantEntry.getKey(), () -> closed.forEach(this::emit));
+        }
+    }
+
+    private void emit(MeasurementRepresentation measurement) {
+        metrics.increment("hono.agent.aggregation.windows");
+        cumulocityClient.createMeasurementAsync(measurement);
+    }
+
+    /**
+     * Aggregation state of one device. Access must be synchronized on the window.
+     */
+    private static final class DeviceWindow implements MeasurementMapping.RuleSink {
+        final GId source;
+        MeasurementMapping mapping;
+        long windowStart = -1;
+        long lastSampleAt;
+        boolean removed;
+        long[] count;
+        double[] min;
+        double[] max;
+        double[] sum;
+        double[] last;
+
+        DeviceWindow(GId source) {
+            this.source = source;
+        }
+
+        /**
+         * Starts the window if the sample belongs to a new window or the mapping of the device changed.
+         *
+         * @return The measurement of the previous window, if it had any values.
+         */
+        MeasurementRepresentation roll(MeasurementMapping mapping, long start) {
+            if (mapping == this.mapping && start == windowStart)
+                return null;
+            MeasurementRepresentation closed = close();
+            if (mapping != this.mapping) {
+                int rules = mapping.getRuleCount();
+                this.mapping = mapping;
+                count = new long[rules];
+                min = new double[rules];
+                max = new double[rules];
+                sum = new double[rules];
+                last = new double[rules];
+            }
+            windowStart = start;
+            return closed;
+        }
+
+        @Override
+        public void accept(int rule, double value) {
+            if (count[rule]++ == 0) {
+                min[rule] = value;
+                max[rule] = value;
+                sum[rule] = value;
+            } else {
+                if (value < min[rule])
+                    min[rule] = value;
+                if (value > max[rule])
+                    max[rule] = value;
+                sum[rule] += value;
+            }
+            last[rule] = value;
+        }
+
+        boolean isEmpty() {
+            if (count == null)
+                return true;
+            for (long c : count) {
+                if (c > 0)
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Creates the measurement of the window and resets the window, or returns {@code null} if it has no values.
+         */
+        MeasurementRepresentation close() {
+            if (isEmpty())
+                return null;
+            Map<String, Map<String, Object>> fragments = new HashMap<>();
+            for (int rule = 0; rule < count.length; rule++) {
+                if (count[rule] == 0)
+                    continue;
+                String series = mapping.getSeries(rule);
+                String unit = mapping.getUnit(rule);
+                Map<String, Object> fragment = fragments.computeIfAbsent(mapping.getFragment(rule), f -> new HashMap<>());
+                fragment.put(series, value(sum[rule] / count[rule], unit));
+                fragment.put(series + "_min", value(min[rule], unit));
+                fragment.put(series + "_max", value(max[rule], unit));
+                fragment.put(series + "_last", value(last[rule], unit));
+                fragment.put(series + "_count", value(count[rule], null));
+            }
+            Arrays.fill(count, 0);
+            ManagedObjectRepresentation mor = new ManagedObjectRepresentation();
+            mor.setId(source);
+            MeasurementRepresentation measurement = new MeasurementRepresentation();
+            measurement.setSource(mor);
+            measurement.setDateTime(new DateTime(windowStart));
+            measurement.setType(mapping.getType());
+            for (Map.Entry<String, Map<String, Object>> fragment : fragments.entrySet()) {
+                measurement.set(fragment.getValue(), fragment.getKey());
+            }
+            return measurement;
+        }
+
+        private Map<String, Object> value(double value, String unit) {
+            Map<String, Object> seriesValue = new HashMap<>(4);
+            seriesValue.put("value", value);
+            if (unit != null)
+                seriesValue.put("unit", unit);
+            return seriesValue;
+        }
+    }
+}
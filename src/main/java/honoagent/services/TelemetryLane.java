@@ -0,0 +1,291 @@
+package honoagent.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Processing lane for telemetry with its own threads and a bounded queue, so that a flood of telemetry cannot delay
+ * events, which keep the {@link DeviceExecutor}.
+ * <p>
+ * Like the device executor, every tenant has its own stripes, tasks are striped by device and run in order per device,
+ * and the stripes of one tenant occupy at most {@code hono.lanes.telemetry.tenantShare} of the threads. Telemetry is
+ * shed by {@code hono.lanes.telemetry.policy} once the tenant has {@code hono.lanes.telemetry.shedWatermark} telemetry
+ * messages in the pipeline, which by default is the low watermark of the telemetry credit, so that fresh telemetry is
+ * kept flowing before the credit is stopped. {@code hono.lanes.telemetry.queueCapacity} bounds the tasks of all tenants
+ * waiting in the lane and sheds as well when it is reached, from the stripes of the tenant that submits.
+ * <ul>
+ * <li>{@code drop-oldest} - the oldest task of the device's stripe is dropped for the new one.</li>
+ * <li>{@code sample} - only every {@code hono.lanes.telemetry.sampleRate}-th message of a device is kept, up to twice
+ * the capacity.</li>
+ * <li>{@code keep-latest} - a pending task of the device is replaced by the new one, so at most one message per
+ * device waits.</li>
+ * </ul>
+ * Telemetry is QoS 0 in Hono, a shed message is acknowledged as processed and counted in
+ * {@code hono.agent.lanes.telemetry.shed}. Tasks submitted after shutdown are shed, tasks queued at shutdown still
+ * run.
+ */
+@Component
+public class TelemetryLane {
+
+    final Logger logger = LoggerFactory.getLogger(TelemetryLane.class);
+
+    static final String DROP_OLDEST = "drop-oldest";
+    static final String SAMPLE = "sample";
+    static final String KEEP_LATEST = "keep-latest";
+    private static final int MAX_TASKS_PER_RUN = 64;
+
+    @Autowired
+    AgentMetrics metrics;
+
+    @Value("${hono.lanes.telemetry.threads:0}")
+    private int threads;
+
+    @Value("${hono.lanes.telemetry.stripes:256}")
+    private int stripes;
+
+    @Value("${hono.lanes.telemetry.queueCapacity:10000}")
+    private int queueCapacity;
+
+    @Value("${hono.lanes.telemetry.shedWatermark:${hono.flow.telemetry.lowWatermark:${hono.flow.lowWatermark:2500}}}")
+    private int shedWatermark;
+
+    @Value("${hono.lanes.telemetry.policy:drop-oldest}")
+    private String policy;
+
+    @Value("${hono.lanes.telemetry.sampleRate:10}")
+    private int sampleRate;
+
+    @Value("${hono.lanes.telemetry.tenantShare:0.5}")
+    private double tenantShare;
+
+    private ExecutorService workers;
+    private int maxRunningPerTenant;
+    private final ConcurrentMap<String, Stripe[]> tenantLanes = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+
+    @PostConstruct
+    public void start() {
+        if (!DROP_OLDEST.equals(policy) && !SAMPLE.equals(policy) && !KEEP_LATEST.equals(policy))
+            throw new IllegalArgumentException("Unknown telemetry shedding policy: " + policy);
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadCount = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(poolSize, runnable -> {
+            Thread thread = new Thread(runnable, "telemetry-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        maxRunningPerTenant = (int) Math.ceil(poolSize * tenantShare);
+        metrics.gauge("hono.agent.lanes.telemetry.pending", pending, AtomicInteger::get);
+        logger.info("Telemetry lane started with {} threads, {} threads per tenant, shed watermark {}, capacity {} and policy {}",
+                poolSize, maxRunningPerTenant, shedWatermark, queueCapacity, policy);
+    }
+
+    /**
+     * Runs the task after all previously submitted telemetry tasks of the device have finished, unless it is shed.
+     *
+     * @param tenant Tenant of the device.
+     * @param depth  Number of telemetry messages of the tenant in the pipeline, including this one.
+     * @param onShed Runs instead of the task if the task is shed, on the submitting thread.
+     */
+    public void execute(String tenant, String deviceId, int depth, Runnable task, Runnable onShed) {
+        Stripe[] lanes = tenantLanes.computeIfAbsent(tenant, t -> newLanes());
+        int hash = deviceId != null ? deviceId.hashCode() : 0;
+        lanes[Math.floorMod(hash ^ (hash >>> 16), lanes.length)].add(new Task(deviceId, task, onShed), depth >= shedWatermark);
+    }
+
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(10, TimeUnit.SECONDS))
+                logger.warn("Telemetry lane did not finish in time, {} tasks are lost", pending.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void shed(Runnable onShed) {
+        metrics.increment("hono.agent.lanes.telemetry.shed");
+        try {
+            onShed.run();
+        } catch (Exception e) {
+            logger.error("Error on shedding telemetry task", e);
+        }
+    }
+
+    /**
+     * The share only applies while more than one tenant uses the lane, a single tenant may use all threads.
+     */
+    private int getMaxRunningPerTenant() {
+        return tenantLanes.size() > 1 ? maxRunningPerTenant : Integer.MAX_VALUE;
+    }
+
+    private Stripe[] newLanes() {
+        TenantShare<Stripe> share = new TenantShare<>(workers, this::getMaxRunningPerTenant);
+        Stripe[] lanes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            lanes[i] = new Stripe(share);
+        }
+        return lanes;
+    }
+
+    private static final class Task {
+        final String deviceId;
+        Runnable task;
+        Runnable onShed;
+
+        Task(String deviceId, Runnable task, Runnable onShed) {
+            this.deviceId = deviceId;
+            this.task = task;
+            this.onShed = onShed;
+        }
+    }
+
+    private final class Stripe implements Runnable {
+        private final TenantShare<Stripe> share;
+        private final Queue<Task> tasks = new ArrayDeque<>();
+        // Pending task per device, only kept for keep-latest
+        private final Map<String, Task> latest = new HashMap<>();
+        // Messages per device since the stripe was last empty, only kept for sample
+        private final Map<String, int[]> sampleCounts = new HashMap<>();
+        private boolean scheduled;
+
+        Stripe(TenantShare<Stripe> share) {
+            this.share = share;
+        }
+
+        void add(Task task, boolean overloaded) {
+            Runnable shed = null;
+            boolean schedule = false;
+            synchronized (this) {
+                if (overloaded || pending.get() >= queueCapacity) {
+                    switch (policy) {
+                        case DROP_OLDEST:
+                            Task oldest = tasks.poll();
+                            if (oldest != null) {
+                                pending.decrementAndGet();
+                                shed = oldest.onShed;
+                            } else {
+                                // The lane is full with tasks of other stripes
+                                shed = task.onShed;
+                                task = null;
+                            }
+                            break;
+                        case SAMPLE:
+                            int count = ++sampleCounts.computeIfAbsent(task.deviceId, d -> new int[1])[0];
+                            if (count % sampleRate != 0 || pending.get() >= 2 * queueCapacity) {
+                                shed = task.onShed;
+                                task = null;
+                            }
+                            break;
+                        default:
+                            Task queued = latest.get(task.deviceId);
+                            if (queued != null) {
+                                // Keeps the position of the queued task, which runs with the newest message
+                                shed = queued.onShed;
+                                queued.task = task.task;
+                                queued.onShed = task.onShed;
+                                task = null;
+                            }
+                    }
+                }
+                if (task != null) {
+                    pending.incrementAndGet();
+                    tasks.add(task);
+                    if (KEEP_LATEST.equals(policy))
+                        latest.put(task.deviceId, task);
+                    if (!scheduled) {
+                        scheduled = true;
+                        schedule = true;
+                    }
+                }
+            }
+            if (shed != null)
+                shed(shed);
+            if (!schedule)
+                return;
+            // Sheds the stripes of the tenant that cannot be scheduled anymore
+            for (Stripe rejected = share.schedule(this); rejected != null; rejected = share.next(rejected, false)) {
+                rejected.shedAll();
+            }
+        }
+
+        @Override
+        public void run() {
+            // Hand the thread back after a number of tasks so that busy stripes cannot starve the others. While the
+            // lane shuts down the stripes of the tenant are not handed back but drained on this thread.
+            Stripe stripe = this;
+            while (stripe != null) {
+                stripe = share.next(stripe, stripe.runTasks());
+            }
+        }
+
+        /**
+         * Runs the next tasks of the stripe, at most {@code MAX_TASKS_PER_RUN}.
+         *
+         * @return true if tasks are left
+         */
+        private boolean runTasks() {
+            for (int i = 0; i < MAX_TASKS_PER_RUN; i++) {
+                Runnable task;
+                synchronized (this) {
+                    Task next = tasks.poll();
+                    if (next == null) {
+                        scheduled = false;
+                        sampleCounts.clear();
+                        return false;
+                    }
+                    latest.remove(next.deviceId, next);
+                    task = next.task;
+                }
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    // Must not end the run, the stripe would stay scheduled without a worker
+                    logger.error("Error on executing telemetry task", e);
+                } finally {
+                    pending.decrementAndGet();
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Sheds the tasks of a stripe that cannot be scheduled anymore.
+         */
+        private void shedAll() {
+            Queue<Task> shed;
+            synchronized (this) {
+                shed = new ArrayDeque<>(tasks);
+                tasks.clear();
+                latest.clear();
+                sampleCounts.clear();
+                scheduled = false;
+            }
+            for (Task task : shed) {
+                pending.decrementAndGet();
+                shed(task.onShed);
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package honoagent.services;
+
+import com.cumulocity.microservice.subscription.model.core.MicroserviceCredentials;
+import io.micrometer.core.instrument.Meter;
+import org.eclipse.hono.client.ApplicationClientFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connection state of one subscribed Cumulocity tenant and the Hono tenant it is routed to.
+ * <p>
+ * Every tenant has its own AMQP connection, reconnector, consumers, command dispatcher and credit controllers.
+ * Credit is granted based on the number of messages of this tenant that are still in the pipeline, which bounds the
+ * messages a tenant can have in the pipeline by its high watermarks. Telemetry and events are counted separately, so a
+ * flood of telemetry does not stop the credit of the event consumer.
+ * <p>
+ * The {@link DeviceExecutor}, the {@link TelemetryLane} and the {@link BatchWriter} are shared, but each gives a tenant
+ * only a share of its threads or queue capacity ({@code hono.executor.tenantShare},
+ * {@code hono.lanes.telemetry.tenantShare} and {@code hono.writer.tenantShare}). A tenant with a slow platform uses up
+ * its own share and leaves the rest to the other tenants.
+ */
+class TenantConnection {
+
+    final MicroserviceCredentials credentials;
+    final AtomicInteger telemetryInFlight = new AtomicInteger();
+    final AtomicInteger eventInFlight = new AtomicInteger();
+    // Completed once the consumers and the command client have been opened for the first time
+    final CompletableFuture<Void> ready = new CompletableFuture<>();
+
+    // Set while the Hono configuration of the tenant is incomplete, the start is retried until it is complete
+    volatile boolean unconfigured;
+    // Set if not all devices of the tenant could be preloaded into the device cache
+    volatile boolean preloadIncomplete;
+
+    String honoHost;
+    Integer honoPort;
+    String honoUser;
+    String honoPW;
+    String honoTenantId;
+
+    ApplicationClientFactory clientFactory;
+    CommandDispatcher commandDispatcher;
+    Reconnector reconnector;
+    CreditController telemetryCredit;
+    CreditController eventCredit;
+    DuplicateFilter eventDuplicates;
+    // Meters tagged with the tenant, removed when the connection is closed
+    final List<Meter> meters = new ArrayList<>();
+
+    TenantConnection(MicroserviceCredentials credentials) {
+        this.credentials = credentials;
+    }
+
+    String getTenant() {
+        return credentials.getTenant();
+    }
+
+    String getState() {
+        if (unconfigured)
+            return "unconfigured";
+        if (reconnector == null)
+            return "starting";
+        if (reconnector.isOpen())
+            return "connected";
+        return ready.isDone() ? "reconnecting" : "connecting";
+    }
+
+    boolean isConfigured() {
+        return honoTenantId != null && honoPort != null && honoHost != null && honoUser != null && honoPW != null;
+    }
+
+    int getInFlight() {
+        return telemetryInFlight.get() + eventInFlight.get();
+    }
+
+    /**
+     * Counts a received telemetry message.
+     *
+     * @return the number of telemetry messages of the tenant in the pipeline, including this one
+     */
+    int telemetryReceived() {
+        return telemetryInFlight.incrementAndGet();
+    }
+
+    void eventReceived() {
+        eventInFlight.incrementAndGet();
+    }
+
+    void telemetryProcessed() {
+        telemetryInFlight.decrementAndGet();
+        telemetryCredit.onMessageProcessed();
+    }
+
+    void eventProcessed() {
+        eventInFlight.decrementAndGet();
+        eventCredit.onMessageProcessed();
+    }
+}
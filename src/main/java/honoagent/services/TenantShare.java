@@ -0,0 +1,74 @@
+package honoagent.services;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.IntSupplier;
+
+/**
+ * Share of the threads of a shared pool that the stripes of one tenant may occupy.
+ * <p>
+ * At most {@code maxRunning} stripes of the tenant run at the same time. Further stripes wait until a running stripe
+ * of the tenant hands its thread back, so a tenant with slow tasks cannot take the threads of the other tenants.
+ * Waiting stripes are run in the order they were scheduled. The limit is read on every scheduling, so it can be lifted
+ * while the tenant is the only one using the pool.
+ */
+class TenantShare<S extends Runnable> {
+
+    private final Executor executor;
+    private final IntSupplier maxRunning;
+    private final Queue<S> waiting = new ArrayDeque<>();
+    private int running;
+
+    TenantShare(Executor executor, IntSupplier maxRunning) {
+        this.executor = executor;
+        this.maxRunning = maxRunning;
+    }
+
+    /**
+     * Runs the stripe on the executor, or queues it while the tenant uses its full share.
+     *
+     * @return the stripe if the executor rejected it, it then holds a share and must be run or given up by the caller
+     */
+    S schedule(S stripe) {
+        synchronized (this) {
+            if (running >= Math.max(1, maxRunning.getAsInt())) {
+                waiting.add(stripe);
+                return null;
+            }
+            running++;
+        }
+        return dispatch(stripe);
+    }
+
+    /**
+     * Hands the share of a stripe that finished its run to the next waiting stripe of the tenant. A stripe with tasks
+     * left is queued behind the stripes already waiting.
+     *
+     * @return the next stripe if the executor rejected it, it then holds the share and must be run or given up by the
+     * caller
+     */
+    S next(S stripe, boolean tasksLeft) {
+        S next;
+        synchronized (this) {
+            if (tasksLeft)
+                waiting.add(stripe);
+            next = waiting.poll();
+            if (next == null) {
+                running--;
+                return null;
+            }
+        }
+        return dispatch(next);
+    }
+
+    private S dispatch(S stripe) {
+        try {
+            executor.execute(stripe);
+            return null;
+        } catch (RejectedExecutionException e) {
+            return stripe;
+        }
+    }
+}
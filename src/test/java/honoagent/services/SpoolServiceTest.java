@@ -0,0 +1,174 @@
+package honoagent.services;
+
+import com.cumulocity.microservice.subscription.service.MicroserviceSubscriptionsService;
+import com.cumulocity.sdk.client.SDKException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpoolServiceTest {
+
+    private Path directory;
+    private Spool spool;
+    private SpoolService spoolService;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("spool-service-test");
+        spool = new Spool(directory, 4096, 8);
+        spoolService = new SpoolService();
+        set(spoolService, "spool", spool);
+        set(spoolService, "drainRatePerSecond", 100);
+        set(spoolService, "unsubscribedRetentionMinutes", 60L);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        spool.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    public void retriesUnavailablePlatform() {
+        assertTrue(SpoolService.isRetryable(new SDKException(0, "Connection refused")));
+        assertTrue(SpoolService.isRetryable(new SDKException(429, "Too many requests")));
+        assertTrue(SpoolService.isRetryable(new SDKException(503, "Service unavailable")));
+        assertTrue(SpoolService.isRetryable(new IllegalStateException(new SocketTimeoutException())));
+    }
+
+    @Test
+    public void dropsRejectedRecords() {
+        assertFalse(SpoolService.isRetryable(new SDKException(400, "Bad request")));
+        assertFalse(SpoolService.isRetryable(new SDKException(422, "Unprocessable entity")));
+    }
+
+    @Test
+    public void replaysRecordsToSink() throws Exception {
+        append("E", "t1", "{\"type\":\"e1\"}");
+        append("M", "t2", "{\"type\":\"m1\"}");
+        List<String> written = new ArrayList<>();
+
+        assertEquals(2, spoolService.drain((tenant, kind, json) -> written.add(kind + " " + tenant + " " + json)));
+
+        assertEquals(Arrays.asList("E t1 {\"type\":\"e1\"}", "M t2 {\"type\":\"m1\"}"), written);
+        assertEquals(0, spoolService.getPendingCount());
+    }
+
+    @Test
+    public void keepsRecordOnRetryableFailure() throws Exception {
+        append("E", "t1", "{\"type\":\"e1\"}");
+        append("E", "t1", "{\"type\":\"e2\"}");
+
+        assertEquals(0, spoolService.drain((tenant, kind, json) -> {
+            throw new SDKException(503, "Service unavailable");
+        }));
+
+        assertEquals(2, spoolService.getPendingCount());
+    }
+
+    @Test
+    public void dropsRecordOnRejection() throws Exception {
+        append("E", "t1", "{\"type\":\"e1\"}");
+        append("E", "t1", "{\"type\":\"e2\"}");
+        List<String> written = new ArrayList<>();
+
+        assertEquals(2, spoolService.drain((tenant, kind, json) -> {
+            if (json.contains("e1"))
+                throw new SDKException(422, "Unprocessable entity");
+            written.add(json);
+        }));
+
+        assertEquals(Arrays.asList("{\"type\":\"e2\"}"), written);
+        assertEquals(0, spoolService.getPendingCount());
+    }
+
+    @Test
+    public void keepsRecordOfUnknownTenant() throws Exception {
+        spoolService.subscriptionsService = subscriptionsService();
+        append("E", "t1", "{\"type\":\"e1\"}");
+
+        assertEquals(0, spoolService.drain(spoolService::writeToPlatform));
+
+        assertEquals(1, spoolService.getPendingCount());
+    }
+
+    @Test
+    public void unsubscribedTenantDoesNotBlockOtherTenants() throws Exception {
+        append("E", "t1", "{\"type\":\"e1\"}");
+        append("E", "t2", "{\"type\":\"e2\"}");
+        append("E", "t1", "{\"type\":\"e3\"}");
+        List<String> written = new ArrayList<>();
+
+        assertEquals(1, spoolService.drain((tenant, kind, json) -> {
+            if (tenant.equals("t1"))
+                throw new SpoolService.UnsubscribedTenantException(tenant);
+            written.add(json);
+        }));
+
+        assertEquals(Arrays.asList("{\"type\":\"e2\"}"), written);
+        assertEquals(2, spoolService.getPendingCount());
+
+        // Once subscribed again the requeued records are replayed in their original order
+        assertEquals(2, spoolService.drain((tenant, kind, json) -> written.add(json)));
+        assertEquals(Arrays.asList("{\"type\":\"e2\"}", "{\"type\":\"e1\"}", "{\"type\":\"e3\"}"), written);
+    }
+
+    @Test
+    public void dropsRecordsOfTenantUnsubscribedBeyondRetention() throws Exception {
+        set(spoolService, "unsubscribedRetentionMinutes", -1L);
+        append("E", "t1", "{\"type\":\"e1\"}");
+
+        spoolService.drain((tenant, kind, json) -> {
+            throw new SpoolService.UnsubscribedTenantException(tenant);
+        });
+
+        assertEquals(0, spoolService.getPendingCount());
+    }
+
+    private void append(String kind, String tenant, String json) throws IOException {
+        spool.append((kind + tenant + '\n' + json).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Subscription service without any subscribed tenant.
+     */
+    private static MicroserviceSubscriptionsService subscriptionsService() {
+        return (MicroserviceSubscriptionsService) Proxy.newProxyInstance(SpoolServiceTest.class.getClassLoader(),
+                new Class<?>[]{MicroserviceSubscriptionsService.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getCredentials":
+                            return Optional.empty();
+                        case "runForTenant":
+                            // Like the SDK, does nothing for a tenant without subscription
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static void set(Object target, String field, Object value) throws ReflectiveOperationException {
+        Field f = target.getClass().getDeclaredField(field);
+        f.setAccessible(true);
+        f.set(target, value);
+    }
+}
@@ -0,0 +1,188 @@
+package honoagent.services;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpoolTest {
+
+    private static final int SEGMENT_SIZE = 256;
+
+    private Path directory;
+    private Spool spool;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("spool-test");
+        spool = new Spool(directory, SEGMENT_SIZE, 8);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        spool.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    public void drainsRecordsInAppendOrder() throws IOException {
+        assertTrue(spool.append(bytes("a")));
+        assertTrue(spool.append(bytes("b")));
+        assertTrue(spool.append(bytes("c")));
+        assertEquals(3, spool.getPendingCount());
+
+        List<String> drained = new ArrayList<>();
+        assertEquals(3, spool.drain(10, record -> drained.add(string(record))));
+
+        assertEquals(Arrays.asList("a", "b", "c"), drained);
+        assertEquals(0, spool.getPendingCount());
+        assertEquals(3, spool.getReplayedCount());
+    }
+
+    @Test
+    public void drainStopsAtMax() throws IOException {
+        spool.append(bytes("a"));
+        spool.append(bytes("b"));
+
+        assertEquals(1, spool.drain(1, record -> true));
+        assertEquals(1, spool.getPendingCount());
+    }
+
+    @Test
+    public void rejectedRecordStaysPending() throws IOException {
+        spool.append(bytes("a"));
+        spool.append(bytes("b"));
+
+        assertEquals(0, spool.drain(10, record -> false));
+        assertEquals(2, spool.getPendingCount());
+
+        List<String> drained = new ArrayList<>();
+        spool.drain(10, record -> drained.add(string(record)));
+        assertEquals(Arrays.asList("a", "b"), drained);
+    }
+
+    @Test
+    public void rejectsRecordLargerThanSegment() throws IOException {
+        assertFalse(spool.append(new byte[SEGMENT_SIZE]));
+        assertEquals(0, spool.getPendingCount());
+    }
+
+    @Test
+    public void rollsOverToNewSegments() throws IOException {
+        List<String> appended = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            String record = record(i);
+            assertTrue(spool.append(bytes(record)));
+            appended.add(record);
+        }
+        assertTrue(segmentCount() > 1);
+
+        List<String> drained = new ArrayList<>();
+        spool.drain(100, record -> drained.add(string(record)));
+
+        assertEquals(appended, drained);
+        // Consumed segments are deleted, only the one being written remains
+        assertEquals(1, segmentCount());
+    }
+
+    @Test
+    public void dropsOldestSegmentWhenFull() throws IOException {
+        spool.close();
+        spool = new Spool(directory, SEGMENT_SIZE, 2);
+        for (int i = 0; i < 20; i++) {
+            spool.append(bytes(record(i)));
+        }
+
+        assertTrue(spool.getDroppedCount() > 0);
+        assertEquals(20, spool.getPendingCount() + spool.getDroppedCount());
+        List<String> drained = new ArrayList<>();
+        spool.drain(100, record -> drained.add(string(record)));
+        assertEquals(20 - spool.getDroppedCount(), drained.size());
+        assertEquals(record(19), drained.get(drained.size() - 1));
+    }
+
+    @Test
+    public void recoversPendingRecordsAfterReopen() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            spool.append(bytes(record(i)));
+        }
+        spool.drain(3, record -> true);
+        spool.close();
+
+        spool = new Spool(directory, SEGMENT_SIZE, 8);
+        assertEquals(7, spool.getPendingCount());
+        List<String> drained = new ArrayList<>();
+        spool.drain(100, record -> drained.add(string(record)));
+        assertEquals(record(3), drained.get(0));
+        assertEquals(7, drained.size());
+    }
+
+    @Test
+    public void skipsSegmentWithCorruptedRecord() throws IOException {
+        for (int i = 0; i < 20; i++) {
+            spool.append(bytes(record(i)));
+        }
+        spool.close();
+        Path first = segments().get(0);
+        try (FileChannel channel = FileChannel.open(first, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Flips a byte of the payload of the first record, behind the segment and record headers
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, 16);
+            b.put(0, (byte) ~b.get(0));
+            b.rewind();
+            channel.write(b, 16);
+        }
+
+        spool = new Spool(directory, SEGMENT_SIZE, 8);
+        List<String> drained = new ArrayList<>();
+        spool.drain(100, record -> drained.add(string(record)));
+
+        assertEquals(1, spool.getCorruptedCount());
+        assertFalse(drained.isEmpty());
+        assertFalse(drained.contains(record(0)));
+        assertEquals(record(19), drained.get(drained.size() - 1));
+    }
+
+    private int segmentCount() throws IOException {
+        return segments().size();
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.seg")) {
+            files.forEach(segments::add);
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    private static String record(int i) {
+        return String.format("record-%02d-%s", i, "xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx");
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] value) {
+        return new String(value, StandardCharsets.UTF_8);
+    }
+}